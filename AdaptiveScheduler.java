@@ -0,0 +1,523 @@
+package de.studium.image_processing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * The AdaptiveScheduler chooses how the TileExecutor splits the work of a
+ * call: how many threads to use and how many rows each tile gets. Which 
+ * plan is fastest depends on cache sizes and core count of the machine, so
+ * it is measured once instead of being fixed.
+ *
+ * On first use, a short calibration runs a pixel kernel (every output 
+ * pixel reads one input pixel, like a PixelFilter) and area kernels 
+ * (every output pixel reads its 3x3, 5x5 or 9x9 neighbourhood) on a 
+ * 2048 x 1024 image, larger neighbourhoods on fewer of its rows. Area 
+ * filters differ a lot in cost, so each call tells how many input pixels
+ * an output pixel reads and is planned by the area kernel closest to that.
+ * For each kernel it measures all thread counts
+ * of powers of two up to the threads of the TileExecutor and several tile
+ * sizes, and the image size from which running in parallel beats running
+ * serially. Images smaller than that are processed on the calling thread,
+ * so they do not pay for forking tiles.
+ *
+ * The resulting profile is stored in the file named by the system property
+ * "image_processing.schedulerProfile", by default scheduler.properties in
+ * the image_processing directory of the user's cache directory, and reused
+ * as long as core count and architecture match. Setting the property to
+ * "none" calibrates once in every JVM instead. Setting 
+ * "image_processing.adaptive" to false or "image_processing.tileRows" to 
+ * a fixed value, or setting threads or tile rows of the TileExecutor, uses
+ * the threads and tile rows of the TileExecutor instead.
+ */
+public class AdaptiveScheduler {
+
+	private static final int PROFILE_VERSION = 2;
+	private static final int CALIBRATION_WIDTH = 2048;
+	private static final int CALIBRATION_HEIGHT = 1024;
+	private static final int[] TILE_PIXELS = { 1 << 14, 1 << 16, 1 << 18, 1 << 20 };
+	private static final int[] SMALL_PIXELS = { 1 << 12, 1 << 14, 1 << 16, 1 << 18 };
+	private static final int RUNS = 3;
+
+	// sides of the neighbourhoods area kernels are calibrated for
+	private static final int[] AREA_SIZES = { 3, 5, 9 };
+
+	// a plan must be this much faster to replace serial processing
+	private static final double MARGIN = 0.95;
+
+	/**
+	 * Threads and tile size to process a call with.
+	 */
+	public static final class Plan {
+
+		private final int threads;
+		private final int tileRows;
+
+		Plan(int threads, int tileRows) {
+			this.threads = threads;
+			this.tileRows = tileRows;
+		}
+
+		/**
+		 * @return (int) threads to use, 1 to process all rows on the calling thread
+		 */
+		public int getThreads() {
+			return threads;
+		}
+
+		/**
+		 * @return (int) rows per tile
+		 */
+		public int getTileRows() {
+			return tileRows;
+		}
+	}
+
+	/**
+	 * Best plan measured for a kind of work.
+	 */
+	private static final class Profile {
+
+		int threads = 1;
+		int tilePixels = TILE_PIXELS[1];
+		long serialPixels = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Creates the only instance when it is first used.
+	 */
+	private static final class Holder {
+
+		static final AdaptiveScheduler INSTANCE = create();
+	}
+
+	// pixel kernel first, then area kernels in order of AREA_SIZES
+	private final Profile[] profiles = new Profile[1 + AREA_SIZES.length];
+	private final Path profilePath;
+	private volatile boolean enabled;
+
+	/**
+	 * Creates scheduler with default profiles, reading settings from system 
+	 * properties.
+	 */
+	private AdaptiveScheduler() {
+
+		for (int i = 0; i < profiles.length; i++)
+			profiles[i] = new Profile();
+
+		String path = System.getProperty("image_processing.schedulerProfile");
+		if (path == null)
+			profilePath = getCacheDirectory().resolve("image_processing")
+					.resolve("scheduler.properties");
+		else
+			profilePath = (path.equals("none")) ? null : Paths.get(path);
+		enabled = Boolean.parseBoolean(System.getProperty("image_processing.adaptive", "true"))
+				&& System.getProperty("image_processing.tileRows") == null;
+	}
+
+	/**
+	 * Returns only instance of AdaptiveScheduler. The first call loads the
+	 * stored profile or calibrates and stores a new one.
+	 *
+	 * @return (AdaptiveScheduler) Instance of AdaptiveScheduler
+	 */
+	public static AdaptiveScheduler getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * @return (AdaptiveScheduler) new scheduler with loaded or calibrated 
+	 * 		profile if enabled
+	 */
+	private static AdaptiveScheduler create() {
+
+		AdaptiveScheduler scheduler = new AdaptiveScheduler();
+		if (scheduler.enabled && !scheduler.load())
+			scheduler.recalibrate();
+		return scheduler;
+	}
+
+	/**
+	 * Chooses plan for a call. Without a profile, or once threads or tile 
+	 * rows of the TileExecutor have been set, its threads and tile rows are
+	 * used.
+	 *
+	 * @param workload (Workload) kind of work
+	 * @param width (int) pixels per row
+	 * @param height (int) rows to process
+	 * @return (Plan) threads and tile rows to use
+	 */
+	public Plan getPlan(Workload workload, int width, int height) {
+		return getPlan(workload, getDefaultReads(workload), width, height);
+	}
+
+	/**
+	 * Chooses plan for a call by the kernel reading about as many input
+	 * pixels per output pixel.
+	 *
+	 * @param workload (Workload) kind of work
+	 * @param reads (int) input pixels read per output pixel
+	 * @param width (int) pixels per row
+	 * @param height (int) rows to process
+	 * @return (Plan) threads and tile rows to use
+	 */
+	public Plan getPlan(Workload workload, int reads, int width, int height) {
+
+		TileExecutor executor = TileExecutor.getInstance();
+
+		if (!enabled || !executor.isAdaptive())
+			return new Plan(executor.getThreads(), executor.getTileRows());
+
+		Profile profile = profiles[getKernel(workload, reads)];
+		int threads = Math.min(profile.threads, executor.getThreads());
+
+		if (threads <= 1 || (long) width * height < profile.serialPixels)
+			return new Plan(1, Math.max(1, height));
+
+		return new Plan(threads, tileRows(profile.tilePixels, width));
+	}
+
+	/**
+	 * Enables or disables adaptive plans. Calibrates first if enabled 
+	 * without a profile.
+	 *
+	 * @param enabled (boolean) true to use measured plans, false to use the
+	 * 		threads and tile rows of the TileExecutor
+	 */
+	public synchronized void setEnabled(boolean enabled) {
+		if (enabled && !this.enabled && !load())
+			recalibrate();
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return (boolean) true if measured plans are used
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return (int) input pixels read per output pixel if a call does not 
+	 * 		tell, those of a 3x3 neighbourhood for area work
+	 */
+	static int getDefaultReads(Workload workload) {
+		return (workload == Workload.PIXEL) ? 1 : AREA_SIZES[0] * AREA_SIZES[0];
+	}
+
+	/**
+	 * @return (int) index of the kernel closest to work of a call, area
+	 * 		kernels compared by the geometric mean of neighbouring sizes
+	 */
+	private static int getKernel(Workload workload, int reads) {
+
+		if (workload == Workload.PIXEL)
+			return 0;
+
+		int kernel = 1;
+		for (int i = 1; i < AREA_SIZES.length; i++)
+			if (reads >= AREA_SIZES[i - 1] * AREA_SIZES[i])
+				kernel = i + 1;
+		return kernel;
+	}
+
+	/**
+	 * @return (String) name of a kernel in profile and description
+	 */
+	private static String getName(int kernel) {
+		return (kernel == 0) ? "pixel" 
+				: "area" + AREA_SIZES[kernel - 1] + "x" + AREA_SIZES[kernel - 1];
+	}
+
+	/**
+	 * Measures plans for all kernels and stores the profile unless storing
+	 * is turned off.
+	 */
+	public synchronized void recalibrate() {
+
+		int width = CALIBRATION_WIDTH;
+		int height = CALIBRATION_HEIGHT;
+		int[] input = new int[width * height];
+		int[] output = new int[input.length];
+
+		Random random = new Random(0);
+		for (int i = 0; i < input.length; i++)
+			input[i] = 0xff000000 | random.nextInt(0x1000000);
+
+		long start = System.nanoTime();
+
+		profiles[0] = calibrate(pixelKernel(input, output, width), width, height);
+
+		for (int i = 0; i < AREA_SIZES.length; i++) {
+			// larger neighbourhoods on fewer rows, so each kernel takes about as long
+			int size = AREA_SIZES[i];
+			int rows = Math.max(SMALL_PIXELS[SMALL_PIXELS.length - 1] / width, 
+					height * AREA_SIZES[0] * AREA_SIZES[0] / (size * size));
+			profiles[i + 1] = calibrate(areaKernel(size, input, output, width, rows),
+					width, rows);
+		}
+
+		System.err.printf("Calibrated scheduler in %.2f s: %s%n",
+				(System.nanoTime() - start) / 1e9, describe());
+
+		if (profilePath == null)
+			return;
+
+		try {
+			store();
+		} catch (IOException e) {
+			System.err.println("Can not store scheduler profile: " + e);
+		}
+	}
+
+	/**
+	 * @return (String) profile of each kind of work
+	 */
+	public String describe() {
+
+		StringBuilder description = new StringBuilder();
+
+		for (int kernel = 0; kernel < profiles.length; kernel++) {
+			Profile profile = profiles[kernel];
+			description.append(String.format("%s%s %d threads, %d pixels per tile, "
+					+ "serial below %s pixels", (description.length() > 0) ? "; " : "",
+					getName(kernel), profile.threads, profile.tilePixels,
+					(profile.serialPixels == Long.MAX_VALUE) ? "all" : profile.serialPixels));
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Measures thread counts and tile sizes for a kernel.
+	 */
+	private static Profile calibrate(TileExecutor.RowTask kernel, int width, int height) {
+
+		Profile profile = new Profile();
+
+		// let the JIT compile the kernel before measuring
+		for (int i = 0; i < RUNS; i++)
+			kernel.process(0, height);
+
+		long serial = measure(kernel, height, height, 1);
+		long best = (long) (serial * MARGIN);
+
+		for (int threads : getThreadCounts()) {
+			for (int tilePixels : TILE_PIXELS) {
+
+				long time = measure(kernel, height, tileRows(tilePixels, width), threads);
+
+				if (time < best) {
+					best = time;
+					profile.threads = threads;
+					profile.tilePixels = tilePixels;
+				}
+			}
+		}
+
+		if (profile.threads == 1)
+			return profile;
+
+		// smallest size at which the best plan beats serial processing
+		profile.serialPixels = (long) width * height;
+
+		for (int pixels : SMALL_PIXELS) {
+
+			int rows = Math.max(1, pixels / width);
+			long serialTime = measure(kernel, rows, rows, 1);
+			long parallelTime = measure(kernel, rows, 
+					tileRows(profile.tilePixels, width), profile.threads);
+
+			if (parallelTime < serialTime * MARGIN) {
+				profile.serialPixels = (long) rows * width;
+				break;
+			}
+		}
+		return profile;
+	}
+
+	/**
+	 * @return (long) fastest of some runs in nanoseconds
+	 */
+	private static long measure(TileExecutor.RowTask kernel, int height, int tileRows,
+			int threads) {
+
+		TileExecutor executor = TileExecutor.getInstance();
+		long best = Long.MAX_VALUE;
+
+		for (int run = 0; run < RUNS; run++) {
+			long start = System.nanoTime();
+			executor.forEachTile(height, tileRows, threads, kernel);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	/**
+	 * @return (List) powers of two up to the threads of the TileExecutor and
+	 * 		that number itself, without 1
+	 */
+	private static List<Integer> getThreadCounts() {
+
+		int max = TileExecutor.getInstance().getThreads();
+		List<Integer> counts = new ArrayList<>();
+
+		for (int threads = 2; threads < max; threads *= 2)
+			counts.add(threads);
+		if (max > 1)
+			counts.add(max);
+
+		return counts;
+	}
+
+	/**
+	 * Creates kernel writing greyscale values of input to output.
+	 */
+	private static TileExecutor.RowTask pixelKernel(int[] input, int[] output, int width) {
+		return (fromRow, toRow) -> {
+			for (int i = fromRow * width; i < toRow * width; i++) {
+				int pixel = input[i];
+				int grey = (((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) 
+						+ (pixel & 0xff)) / 3;
+				output[i] = 0xff000000 | grey << 16 | grey << 8 | grey;
+			}
+		};
+	}
+
+	/**
+	 * Creates kernel writing the average blue value of the size x size 
+	 * neighbourhood of input to output as greyscale value, for the first 
+	 * rows of input.
+	 */
+	private static TileExecutor.RowTask areaKernel(int size, int[] input, int[] output,
+			int width, int height) {
+
+		int radius = size / 2;
+
+		return (fromRow, toRow) -> {
+			for (int row = fromRow; row < toRow; row++) {
+				int center = row * width;
+				for (int col = 0; col < width; col++) {
+					int sum = 0;
+					for (int dy = -radius; dy <= radius; dy++) {
+						int rowStart = Math.min(height - 1, Math.max(0, row + dy)) * width;
+						for (int dx = -radius; dx <= radius; dx++)
+							sum += input[rowStart + Math.min(width - 1, Math.max(0, col + dx))]
+									& 0xff;
+					}
+					int grey = sum / (size * size);
+					output[center + col] = 0xff000000 | grey << 16 | grey << 8 | grey;
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return (int) rows of a tile of about tilePixels pixels, at least 1
+	 */
+	private static int tileRows(int tilePixels, int width) {
+		return Math.max(1, tilePixels / Math.max(1, width));
+	}
+
+	/**
+	 * Reads stored profile if it was measured on this kind of machine.
+	 *
+	 * @return (boolean) true if profile was loaded
+	 */
+	private boolean load() {
+
+		if (profilePath == null || !Files.isRegularFile(profilePath))
+			return false;
+
+		Properties properties = new Properties();
+
+		try (InputStream in = Files.newInputStream(profilePath)) {
+			properties.load(in);
+		} catch (IOException e) {
+			return false;
+		}
+
+		if (!getMachine().equals(properties.getProperty("machine")))
+			return false;
+
+		try {
+			for (int kernel = 0; kernel < profiles.length; kernel++) {
+				String prefix = getName(kernel) + ".";
+				Profile profile = new Profile();
+				profile.threads = Integer.parseInt(
+						properties.getProperty(prefix + "threads"));
+				profile.tilePixels = Integer.parseInt(
+						properties.getProperty(prefix + "tilePixels"));
+				profile.serialPixels = Long.parseLong(
+						properties.getProperty(prefix + "serialPixels"));
+				profiles[kernel] = profile;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Stores profile. It is written to a file of its own first and then 
+	 * moved, so JVMs calibrating at the same time never read half of it.
+	 */
+	private void store() throws IOException {
+
+		Properties properties = new Properties();
+		properties.setProperty("machine", getMachine());
+
+		for (int kernel = 0; kernel < profiles.length; kernel++) {
+			String prefix = getName(kernel) + ".";
+			Profile profile = profiles[kernel];
+			properties.setProperty(prefix + "threads", Integer.toString(profile.threads));
+			properties.setProperty(prefix + "tilePixels", 
+					Integer.toString(profile.tilePixels));
+			properties.setProperty(prefix + "serialPixels", 
+					Long.toString(profile.serialPixels));
+		}
+
+		if (profilePath.getParent() != null)
+			Files.createDirectories(profilePath.getParent());
+
+		Path written = Files.createTempFile(profilePath.toAbsolutePath().getParent(), 
+				"scheduler", ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(written)) {
+				properties.store(out, "AdaptiveScheduler profile");
+			}
+			Files.move(written, profilePath, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(written);
+		}
+	}
+
+	/**
+	 * @return (Path) directory of the user's cache, XDG_CACHE_HOME if set
+	 */
+	private static Path getCacheDirectory() {
+		String cache = System.getenv("XDG_CACHE_HOME");
+		return (cache != null && !cache.isEmpty()) 
+				? Paths.get(cache) 
+				: Paths.get(System.getProperty("user.home"), ".cache");
+	}
+
+	/**
+	 * @return (String) description of machine a profile is valid for
+	 */
+	private static String getMachine() {
+		return PROFILE_VERSION + "/" + System.getProperty("os.arch") + "/"
+				+ Runtime.getRuntime().availableProcessors() + "/" 
+				+ TileExecutor.getInstance().getThreads();
+	}
+
+}
@@ -60,10 +60,17 @@ public abstract class AreaFilter implements Filter {
 		this.size = size;
 	}
 	
+	@Override
+	public String getFingerprint() {
+		return Filter.super.getFingerprint() + "(" + size + ")";
+	}
+	
 	/**
 	 * Extracts color values from image and creates output array of the same
-	 * size. For each pixel checks if masked. If not, assigns calculated value
-	 * from surrounding pixels to output array, else assigns pixel value.
+	 * size. For each row copies pixel values and assigns calculated values
+	 * from surrounding pixels to spans of masked pixels.
+	 * Tiles of rows are processed in parallel by the TileExecutor, each of
+	 * them reading its surroundings from the complete image array.
 	 * Creates and returns image out of output array.
 	 */
 	public BufferedImage process(BufferedImage ...input){
@@ -76,35 +83,55 @@ public abstract class AreaFilter implements Filter {
 		if (image == null) // nothing to process;
 			return null;
 		
-		BufferedImage output;
-		int[] imageArray, maskArray, outputArray;
+		int[] imageArray, outputArray;
+		Mask maskBits;
 		int width, height;
 		
 		width = image.getWidth();
 		height = image.getHeight();
 		
-		imageArray = image.getRGB(0, 0, width, height, null, 0, width);
+		imageArray = DerivedDataCache.getInstance().getPixels(image);
 		outputArray = new int[imageArray.length];
 		
-		maskArray = (mask != null) 
-				? mask.getRGB(0, 0, width, height, null, 0, width)
-				: null;
+		maskBits = Mask.of(mask);
 				
-		for (int i = 0; i < imageArray.length; i++) {
-			
-			outputArray[i] = (mask == null || maskArray[i] > 0xff000000)
-					? calculate(imageArray, maskArray, i, width, height)
-					: imageArray[i];
-					
-		}
+		TileExecutor.getInstance().forEachTile(Workload.AREA, size * size, width, 
+				height, (fromRow, toRow) -> {
+			for (int row = fromRow; row < toRow; row++) {
+				
+				int rowStart = row * width;
+				
+				if (maskBits == null) {
+					for (int i = rowStart; i < rowStart + width; i++)
+						outputArray[i] = calculate(imageArray, maskBits, i, width, height);
+					continue;
+				}
+				
+				// copy row, then calculate masked spans
+				System.arraycopy(imageArray, rowStart, outputArray, rowStart, width);
+				
+				for (int span = maskBits.firstSpan(row); span < maskBits.endSpan(row); span++)
+					for (int i = rowStart + maskBits.spanStart(span); 
+							i < rowStart + maskBits.spanEnd(span); i++)
+						outputArray[i] = calculate(imageArray, maskBits, i, width, height);
+			}
+		});
 		
-		output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		output.setRGB(0, 0, width, height, outputArray, 0, width);
-		return output;
+		return RasterAccess.wrapWithAlpha(outputArray, width, height);
 	}
 	
 	
-	protected abstract int calculate(int[] pixel, int[] maskPixel, int index, 
+	/**
+	 * Calculates value of a masked pixel from its surrounding pixels.
+	 * 
+	 * @param pixel (int[]) color values of image
+	 * @param mask (Mask) masked pixels, null if unmasked
+	 * @param index (int) index of pixel to calculate
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @return (int) calculated color value
+	 */
+	protected abstract int calculate(int[] pixel, Mask mask, int index, 
 			int width, int height);
 	
 	/**
@@ -124,10 +151,9 @@ public abstract class AreaFilter implements Filter {
 		for (int pixel : pixelArray) {	
 			// only non-masked pixels will be considered in calculation
 			if (pixel != IGNORE_PIXEL) {
-				ColorContainer pixelColor = ColorContainer.fromValue(pixel);	
-				redSum += pixelColor.getRed();
-				greenSum += pixelColor.getGreen();
-				blueSum += pixelColor.getBlue();		
+				redSum += PixelColor.red(pixel);
+				greenSum += PixelColor.green(pixel);
+				blueSum += PixelColor.blue(pixel);
 				pixelCount++;
 			}
 		}
@@ -139,7 +165,7 @@ public abstract class AreaFilter implements Filter {
 		int avgGreen = greenSum / pixelCount;
 		int avgBlue = blueSum / pixelCount;
 		
-		return ColorContainer.fromRGB(avgRed, avgGreen, avgBlue).getColorValue();
+		return PixelColor.combine(avgRed, avgGreen, avgBlue);
 	}
 	
 }
@@ -0,0 +1,50 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * An auto multithreshold filter performs a multithreshold with thresholds
+ * calculated from the greyscale histogram of each image (multilevel Otsu's
+ * method).
+ * 
+ * @see Histogram#getOtsuThresholds(int)
+ */
+public class AutoMultiThresholdFilter implements Filter {
+	
+	private int levels;
+	
+	/**
+	 * Creates AutoMultiThresholdFilter with number of thresholds
+	 * @param levels (int) number of thresholds, there will be levels + 1
+	 * 		greyscale colors
+	 */
+	public AutoMultiThresholdFilter(int levels) {
+		this.levels = Math.max(1, levels);
+	}
+	
+	@Override
+	public String getFingerprint() {
+		return Filter.super.getFingerprint() + "(" + levels + ")";
+	}
+	
+	/**
+	 * Calculates thresholds from histogram of image, then performs a
+	 * MultiThresholdFilter with them.
+	 */
+	@Override
+	public BufferedImage process(BufferedImage ...images) {
+		
+		BufferedImage image, mask;
+		
+		image = (images.length > 0) ? images[0] : null;
+		mask = (images.length > 1) ? images[1] : null;
+		
+		if (image == null)	// nothing to process
+			return null;
+		
+		int[] thresholds = Histogram.of(image, mask).getOtsuThresholds(levels);
+		
+		return new MultiThresholdFilter(thresholds).process(images);
+	}
+
+}
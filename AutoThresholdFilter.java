@@ -0,0 +1,34 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * An auto threshold filter performs a threshold with a threshold calculated
+ * from the greyscale histogram of each image (Otsu's method), so under- or
+ * overexposed images are still separated into black and white.
+ * 
+ * @see Histogram#getOtsuThresholds(int)
+ */
+public class AutoThresholdFilter implements Filter {
+	
+	/**
+	 * Calculates threshold from histogram of image, then performs a
+	 * ThresholdFilter with it.
+	 */
+	@Override
+	public BufferedImage process(BufferedImage ...images) {
+		
+		BufferedImage image, mask;
+		
+		image = (images.length > 0) ? images[0] : null;
+		mask = (images.length > 1) ? images[1] : null;
+		
+		if (image == null)	// nothing to process
+			return null;
+		
+		int threshold = Histogram.of(image, mask).getOtsuThresholds(1)[0];
+		
+		return new ThresholdFilter(threshold).process(images);
+	}
+
+}
@@ -0,0 +1,355 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BatchProcessor applies a filter to many images within one JVM. Decoding,
+ * filtering and encoding run as concurrent stages connected by bounded
+ * queues. Decoding and encoding run on I/O threads, filtering on a pool of
+ * a fixed number of threads.
+ */
+public class BatchProcessor {
+	
+	private static final Job END = new Job(null, null);
+	
+	private final Filter filter;
+	private final int filterThreads;
+	private final int ioThreads;
+	private final int queueCapacity;
+	private String format = "bmp";
+	
+	private final Stage decode = new Stage("decode");
+	private final Stage process = new Stage("filter");
+	private final Stage encode = new Stage("encode");
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicLong pixels = new AtomicLong();
+	
+	/**
+	 * Image passed from one stage to the next.
+	 */
+	private static class Job {
+		
+		final Path path;
+		final BufferedImage image;
+		
+		Job(Path path, BufferedImage image) {
+			this.path = path;
+			this.image = image;
+		}
+	}
+	
+	/**
+	 * Time a stage spent working and waiting for its queues.
+	 */
+	private static class Stage {
+		
+		final String name;
+		final AtomicLong busyNanos = new AtomicLong();
+		final AtomicLong waitNanos = new AtomicLong();
+		
+		Stage(String name) {
+			this.name = name;
+		}
+		
+		<T> T take(BlockingQueue<T> queue) throws InterruptedException {
+			long start = System.nanoTime();
+			T element = queue.take();
+			waitNanos.addAndGet(System.nanoTime() - start);
+			return element;
+		}
+		
+		<T> void put(BlockingQueue<T> queue, T element) throws InterruptedException {
+			long start = System.nanoTime();
+			queue.put(element);
+			waitNanos.addAndGet(System.nanoTime() - start);
+		}
+		
+		String report() {
+			return String.format("%-6s busy %8.2f s, waiting %8.2f s", name,
+					busyNanos.get() / 1e9, waitNanos.get() / 1e9);
+		}
+	}
+	
+	/**
+	 * Creates BatchProcessor using a thread per core for filtering.
+	 * 
+	 * @param filter (Filter) filter to apply to each image
+	 */
+	public BatchProcessor(Filter filter) {
+		this(filter, Runtime.getRuntime().availableProcessors(), 
+				Runtime.getRuntime().availableProcessors(), 16);
+	}
+	
+	/**
+	 * Creates BatchProcessor.
+	 * 
+	 * @param filter (Filter) filter to apply to each image
+	 * @param filterThreads (int) threads filtering images
+	 * @param ioThreads (int) threads decoding and threads encoding images
+	 * @param queueCapacity (int) images each queue between stages can hold
+	 */
+	public BatchProcessor(Filter filter, int filterThreads, int ioThreads, 
+			int queueCapacity) {
+		this.filter = filter;
+		this.filterThreads = Math.max(1, filterThreads);
+		this.ioThreads = Math.max(1, ioThreads);
+		this.queueCapacity = Math.max(1, queueCapacity);
+	}
+	
+	/**
+	 * Lists files of a directory or files matching a glob pattern like
+	 * "images/*.png", sorted by name.
+	 * 
+	 * @param directoryOrGlob (String) directory or glob pattern
+	 * @return (List) matching files
+	 * @throws IOException if directory can not be read
+	 */
+	public static List<Path> listInputs(String directoryOrGlob) throws IOException {
+		
+		Path path = Paths.get(directoryOrGlob);
+		Path directory;
+		PathMatcher matcher;
+		
+		if (Files.isDirectory(path)) {
+			directory = path;
+			matcher = file -> true;
+		} else {
+			directory = (path.getParent() != null) ? path.getParent() : Paths.get(".");
+			matcher = FileSystems.getDefault()
+					.getPathMatcher("glob:" + path.getFileName());
+		}
+		
+		List<Path> inputs = new ArrayList<>();
+		
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files)
+				if (Files.isRegularFile(file) && matcher.matches(file.getFileName()))
+					inputs.add(file);
+		}
+		
+		Collections.sort(inputs);
+		return inputs;
+	}
+	
+	/**
+	 * @param format (String) output format, "bmp" (default), "ppm" or "png"
+	 */
+	public void setFormat(String format) {
+		this.format = format;
+	}
+	
+	/**
+	 * Filters all inputs and writes them into output directory, named like 
+	 * the input followed by the extension of the format, like "a.bmp.png".
+	 * An input whose output name was taken by an earlier one fails. Prints throughput and time each stage worked
+	 * and waited. Images failing in any stage are counted as failed, the 
+	 * others are still processed. All threads are stopped when done.
+	 * 
+	 * @param inputs (List) image files
+	 * @param mask (BufferedImage) mask applied to every image, null if unmasked
+	 * @param outputDirectory (Path) directory to write to
+	 * @throws IOException if output directory can not be created
+	 * @throws InterruptedException if interrupted while waiting for stages
+	 * @throws IllegalStateException if a stage stopped unexpectedly
+	 */
+	public void process(List<Path> inputs, BufferedImage mask, Path outputDirectory) 
+			throws IOException, InterruptedException {
+		
+		Files.createDirectories(outputDirectory);
+		
+		BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<Job> filtered = new ArrayBlockingQueue<>(queueCapacity);
+		AtomicInteger next = new AtomicInteger();
+		Set<String> written = ConcurrentHashMap.newKeySet();
+		
+		ExecutorService decoders = IoExecutors.newExecutor();
+		ExecutorService encoders = IoExecutors.newExecutor();
+		ExecutorService workers = Executors.newFixedThreadPool(filterThreads);
+		
+		long start = System.nanoTime();
+		
+		try {
+			
+			List<Future<?>> decoding = new ArrayList<>();
+			for (int i = 0; i < ioThreads; i++)
+				decoding.add(decoders.submit(() -> decode(inputs, next, decoded)));
+			
+			List<Future<?>> filtering = new ArrayList<>();
+			for (int i = 0; i < filterThreads; i++)
+				filtering.add(workers.submit(() -> filter(decoded, filtered, mask)));
+			
+			List<Future<?>> encoding = new ArrayList<>();
+			for (int i = 0; i < ioThreads; i++)
+				encoding.add(encoders.submit(() -> encode(filtered, outputDirectory, written)));
+			
+			// end each stage after the one before has finished, even if it failed
+			Throwable failure = await(decoding, null);
+			for (int i = 0; i < filterThreads; i++)
+				decoded.put(END);
+			failure = await(filtering, failure);
+			for (int i = 0; i < ioThreads; i++)
+				filtered.put(END);
+			failure = await(encoding, failure);
+			
+			if (failure != null)
+				throw new IllegalStateException(failure);
+			
+		} finally {
+			// stops threads still waiting for a queue if a stage failed
+			decoders.shutdownNow();
+			workers.shutdownNow();
+			encoders.shutdownNow();
+			workers.awaitTermination(1, TimeUnit.MINUTES);
+			DerivedDataCache.getInstance().invalidate(mask);
+		}
+		
+		double seconds = (System.nanoTime() - start) / 1e9;
+		int done = inputs.size() - failed.get();
+		
+		System.out.printf("%d images (%d failed) in %.2f s: %.1f images/s, %.1f MP/s%n",
+				done, failed.get(), seconds, done / seconds, pixels.get() / 1e6 / seconds);
+		System.out.println(decode.report());
+		System.out.println(process.report());
+		System.out.println(encode.report());
+	}
+	
+	/**
+	 * Decodes inputs until none are left.
+	 */
+	private Void decode(List<Path> inputs, AtomicInteger next, 
+			BlockingQueue<Job> decoded) throws InterruptedException {
+		
+		for (int i = next.getAndIncrement(); i < inputs.size(); i = next.getAndIncrement()) {
+			
+			Path path = inputs.get(i);
+			long start = System.nanoTime();
+			BufferedImage image = null;
+			
+			try {
+				image = MappedImageReader.read(path.toFile());
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+			decode.busyNanos.addAndGet(System.nanoTime() - start);
+			
+			if (image == null) {
+				System.err.println("Can not decode " + path);
+				failed.incrementAndGet();
+				continue;
+			}
+			decode.put(decoded, new Job(path, image));
+		}
+		return null;
+	}
+	
+	/**
+	 * Filters decoded images until end is reached.
+	 */
+	private Void filter(BlockingQueue<Job> decoded, BlockingQueue<Job> filtered, 
+			BufferedImage mask) throws InterruptedException {
+		
+		for (Job job = process.take(decoded); job != END; job = process.take(decoded)) {
+			
+			long start = System.nanoTime();
+			BufferedImage output = null;
+			
+			try {
+				output = filter.process(job.image, mask);
+			} catch (Throwable e) {
+				System.err.println("Can not filter " + job.path);
+				e.printStackTrace();
+				failed.incrementAndGet();
+			}
+			process.busyNanos.addAndGet(System.nanoTime() - start);
+			
+			// decoded image is not used again
+			DerivedDataCache.getInstance().invalidate(job.image);
+			
+			if (output == null)
+				continue;
+			
+			pixels.addAndGet((long) output.getWidth() * output.getHeight());
+			process.put(filtered, new Job(job.path, output));
+		}
+		return null;
+	}
+	
+	/**
+	 * Encodes filtered images until end is reached.
+	 * 
+	 * @param written (Set) names of outputs taken so far
+	 */
+	private Void encode(BlockingQueue<Job> filtered, Path outputDirectory, 
+			Set<String> written) throws InterruptedException {
+		
+		for (Job job = encode.take(filtered); job != END; job = encode.take(filtered)) {
+			
+			long start = System.nanoTime();
+			String name = job.path.getFileName() + "." + format;
+			File output = outputDirectory.resolve(name).toFile();
+			int width = job.image.getWidth();
+			int height = job.image.getHeight();
+			
+			if (!written.add(name)) {
+				System.err.println("Can not encode " + job.path + ", " + name 
+						+ " is written by another input");
+				failed.incrementAndGet();
+				DerivedDataCache.getInstance().invalidate(job.image);
+				continue;
+			}
+			
+			try (StripWriter writer = StripWriter.open(format, output, width, height)) {
+				writer.writeImage(RasterAccess.getPixels(job.image));
+			} catch (Throwable e) {
+				System.err.println("Can not encode " + job.path);
+				e.printStackTrace();
+				failed.incrementAndGet();
+			}
+			encode.busyNanos.addAndGet(System.nanoTime() - start);
+			DerivedDataCache.getInstance().invalidate(job.image);
+		}
+		return null;
+	}
+	
+	/**
+	 * Waits for all tasks, even if some of them failed.
+	 * 
+	 * @param failure (Throwable) failure of an earlier stage, null if none
+	 * @return (Throwable) earlier failure or first failure of tasks, null if none
+	 */
+	private Throwable await(List<Future<?>> tasks, Throwable failure) 
+			throws InterruptedException {
+		for (Future<?> task : tasks) {
+			try {
+				task.get();
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause();
+			}
+		}
+		return failure;
+	}
+
+}
@@ -1,49 +1,590 @@
 package de.studium.image_processing;
 
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
 public class BlurFilter extends AreaFilter {
 
+	private final boolean separable;
 	
 	/**
-	 * Calls superclass constructor
+	 * Creates separable BlurFilter.
 	 * 
-	 * @see #AreaFilter.AreaFilter(int size)
+	 * @see #BlurFilter(int, boolean)
 	 */
 	public BlurFilter(int size) {
+		this(size, true);
+	}
+
+	/**
+	 * Creates BlurFilter that either averages a full kernel for every pixel
+	 * or, if separable, uses running sums in a horizontal and a vertical pass.
+	 *
+	 * @param size (int) size of filter
+	 * @param separable (boolean) true for running sum box blur
+	 */
+	public BlurFilter(int size, boolean separable) {
 		super(size);
+		this.separable = separable;
+	}
+
+	@Override
+	public String getFingerprint() {
+		return super.getFingerprint() + ((separable) ? "separable" : "");
 	}
 
 	/**
-	 * Calculates average pixelcolor of pixels around index by creating a kernel
-	 * and filling it with unweighted surroundings. Filling happens by calculating
-	 * corresponding image index to kernel index. Then calculates average value
-	 * of filled kernel values.
+	 * Uses kernel based calculation of superclass if not separable. Else
+	 * performs a horizontal pass, that sums up each row window per colorband,
+	 * and a vertical pass, that sums up the row sums of each column window.
+	 * Both passes slide their window by adding the entering and removing the
+	 * leaving pixel, so the cost per pixel does not depend on size. Both passes
+	 * are split into tiles by the TileExecutor, the vertical pass fills the
+	 * windows of each tile from the rows above it. With a mask, only the
+	 * bounding box of masked pixels and the rows and columns around it
+	 * within reach of the window are summed up. Without a mask, sums of each
+	 * window are taken from the cached integral image of the image instead.
 	 */
 	@Override
-	protected int calculate(int[] pixel, int[] maskPixel, int index, int width, int height) {
+	public BufferedImage process(BufferedImage... input) {
+
+		if (!separable)
+			return super.process(input);
+
+		BufferedImage image, mask;
+
+		image = (input.length > 0) ? input[0] : null;
+		mask = (input.length > 1) ? input[1] : null;
+
+		if (image == null) // nothing to process;
+			return null;
+
+		int[] imageArray, outputArray;
+		Mask maskBits;
+		int width, height;
+
+		width = image.getWidth();
+		height = image.getHeight();
+
+		imageArray = DerivedDataCache.getInstance().getPixels(image);
+		maskBits = Mask.of(mask);
+
+		TileExecutor executor = TileExecutor.getInstance();
+
+		if (maskBits == null) {
+			// all pixels valid, sums of each window come from integral image
+			int[][] integral = DerivedDataCache.getInstance().getIntegralImage(image);
+			outputArray = new int[imageArray.length];
+			executor.forEachTile(Workload.AREA, width, height, (fromRow, toRow) ->
+					integralPass(integral, outputArray, width, height, fromRow, toRow));
+			return RasterAccess.wrapWithAlpha(outputArray, width, height);
+		}
+
+		// unmasked pixels keep their value
+		outputArray = Arrays.copyOf(imageArray, imageArray.length);
+		if (maskBits.isEmpty())
+			return RasterAccess.wrapWithAlpha(outputArray, width, height);
+
+		// rows and columns to calculate
+		int firstRow = maskBits.getMinRow();
+		int lastRow = maskBits.getMaxRow();
+		int left = maskBits.getMinCol();
+		int right = maskBits.getMaxCol() + 1;
+
+		// rows whose sums are within reach of the vertical window
+		int top = Math.max(0, firstRow - size / 2);
+		int bottom = Math.min(height, lastRow + size - size / 2);
+
+		// per band sums and count of valid pixels of each row window
+		int[][] rowSums = new int[4][(bottom - top) * (right - left)];
+		Region region = new Region(top, bottom, left, right);
+
+		executor.forEachTile(Workload.AREA, width, bottom - top, (fromRow, toRow) ->
+				horizontalPass(imageArray, maskBits, rowSums, region, width, 
+						top + fromRow, top + toRow));
+		executor.forEachTile(Workload.AREA, width, lastRow + 1 - firstRow, 
+				(fromRow, toRow) -> verticalPass(maskBits, rowSums, region, outputArray,
+						width, firstRow + fromRow, firstRow + toRow));
+
+		return RasterAccess.wrapWithAlpha(outputArray, width, height);
+	}
+
+	/**
+	 * Only the separable passes work on planes.
+	 */
+	@Override
+	public boolean isPlanar() {
+		return separable;
+	}
+
+	/**
+	 * Uses conversion of Filter if not separable. Else performs horizontal
+	 * and vertical pass like process, but on each plane on its own. With a
+	 * mask, the number of valid pixels in each window is counted by the same
+	 * passes first.
+	 */
+	@Override
+	public PlanarImage process(PlanarImage image, BufferedImage mask) {
+
+		if (!separable || image == null)
+			return super.process(image, mask);
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		Mask maskBits = Mask.of(mask);
+
+		if (maskBits != null && maskBits.isEmpty())
+			return image.copy();
+
+		PlanarImage output = (maskBits == null)
+				? new PlanarImage(width, height)
+				: image.copy();
+
+		// rows and columns to calculate
+		int firstRow = (maskBits == null) ? 0 : maskBits.getMinRow();
+		int lastRow = (maskBits == null) ? height - 1 : maskBits.getMaxRow();
+		int left = (maskBits == null) ? 0 : maskBits.getMinCol();
+		int right = (maskBits == null) ? width : maskBits.getMaxCol() + 1;
+
+		// rows whose sums are within reach of the vertical window
+		int top = Math.max(0, firstRow - size / 2);
+		int bottom = Math.min(height, lastRow + size - size / 2);
+
+		Region region = new Region(top, bottom, left, right);
+		int[] rowSums = new int[(bottom - top) * (right - left)];
+
+		// number of valid pixels in each window, only counted with a mask
+		int[] counts = null;
+		if (maskBits != null) {
+			counts = new int[rowSums.length];
+			planarPass(null, maskBits, rowSums, region, counts, null, width, height,
+					firstRow, lastRow);
+		}
+
+		for (ColorBand band : ColorBand.values())
+			planarPass(image.getPlane(band), maskBits, rowSums, region, counts,
+					output.getPlane(band), width, height, firstRow, lastRow);
+
+		return output;
+	}
+
+	/**
+	 * Calculates average pixelcolor of pixels around index by summing up the
+	 * unweighted surroundings directly. Each kernel position is mapped to 
+	 * its image index, pixels outside of the image array, not masked or 
+	 * equal to IGNORE_PIXEL are left out, like getAveragePixelColor does.
+	 */
+	@Override
+	protected int calculate(int[] pixel, Mask mask, int index, int width, int height) {
 		
-		int[] kernel = new int[size * size];
+		int redSum = 0, greenSum = 0, blueSum = 0, count = 0;
 		
 		for (int row = 0; row < size; row++) {
 			for (int col = 0; col < size; col++) {
 				
 				// center kernel around pixel at index by shifting kernel grid
-				int imageRow = row - size / 2;
-				int imageCol = col - size / 2; 
-				
-				// map kernel pos to image index
-				int kernelIndex = row * size + col;
-				int imageIndex = imageRow * width + imageCol;
+				int imageIndex = index + (row - size / 2) * width + col - size / 2;
 			
-				// check for overlap and mask before assigning value
-				kernel[kernelIndex] = IGNORE_PIXEL;
-				if (index + imageIndex < pixel.length && index + imageIndex > 0)
-					if (maskPixel == null || maskPixel[index + imageIndex] > 0xff000000)
-						kernel[kernelIndex] = pixel[index + imageIndex];
+				// check for overlap and mask before adding value
+				if (imageIndex >= pixel.length || imageIndex <= 0)
+					continue;
+				if (mask != null && !mask.contains(imageIndex))
+					continue;
+				if (pixel[imageIndex] == IGNORE_PIXEL)
+					continue;
+				
+				redSum += PixelColor.red(pixel[imageIndex]);
+				greenSum += PixelColor.green(pixel[imageIndex]);
+				blueSum += PixelColor.blue(pixel[imageIndex]);
+				count++;
 			}
 		}
 		
-		return getAveragePixelColor(kernel);
+		if (count == 0)   // black if there are no valid pixels
+			return 0xff000000;
+		
+		return PixelColor.combine(redSum / count, greenSum / count, blueSum / count);
 	}
-	
-}
 
+	/**
+	 * Area whose row sums are stored, from top to bottom row and from left to
+	 * right column, both exclusive at the end. Row sums of pixel at row and column 
+	 * are stored at index (row - top) * (right - left) + column - left.
+	 */
+	private static class Region {
+
+		final int top;
+		final int bottom;
+		final int left;
+		final int right;
+
+		Region(int top, int bottom, int left, int right) {
+			this.top = top;
+			this.bottom = bottom;
+			this.left = left;
+			this.right = right;
+		}
+
+		int index(int row, int col) {
+			return (row - top) * (right - left) + col - left;
+		}
+	}
+
+	/**
+	 * Calculates average of each window between fromRow and toRow out of the
+	 * integral images, ignoring the part of the window outside of the image.
+	 *
+	 * @param integral (int[][]) red, green and blue integral image
+	 * @param outputPixel (int[]) color values to fill
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @param fromRow (int) first row to process
+	 * @param toRow (int) row after the last one to process
+	 */
+	private void integralPass(int[][] integral, int[] outputPixel, int width, 
+			int height, int fromRow, int toRow) {
+
+		int before = size / 2;
+		int after = size - 1 - before;
+		int stride = width + 1;
+
+		for (int row = fromRow; row < toRow; row++) {
+
+			int top = Math.max(0, row - before) * stride;
+			int bottom = Math.min(height, row + after + 1) * stride;
+			int rows = (bottom - top) / stride;
+
+			for (int col = 0; col < width; col++) {
+
+				int left = Math.max(0, col - before);
+				int right = Math.min(width, col + after + 1);
+				int count = rows * (right - left);
+
+				outputPixel[row * width + col] = PixelColor.combine(
+						areaSum(integral[0], top, bottom, left, right) / count,
+						areaSum(integral[1], top, bottom, left, right) / count,
+						areaSum(integral[2], top, bottom, left, right) / count);
+			}
+		}
+	}
+
+	/**
+	 * Sums up values of an area out of an integral image.
+	 */
+	private static int areaSum(int[] integral, int top, int bottom, int left, 
+			int right) {
+		return integral[bottom + right] - integral[top + right] 
+				- integral[bottom + left] + integral[top + left];
+	}
+
+	/**
+	 * Slides a window of size pixels along each row between fromRow and toRow
+	 * and stores the red, green and blue sum and the number of valid pixels
+	 * inside of it for each column of region. Pixels outside of the image or
+	 * not masked are ignored.
+	 *
+	 * @param pixel (int[]) color values of image
+	 * @param mask (Mask) masked pixels, null if unmasked
+	 * @param rowSums (int[][]) red, green, blue and count sums to fill
+	 * @param region (Region) columns to store sums for
+	 * @param width (int) width of image
+	 * @param fromRow (int) first row to process
+	 * @param toRow (int) row after the last one to process
+	 */
+	private void horizontalPass(int[] pixel, Mask mask, int[][] rowSums,
+			Region region, int width, int fromRow, int toRow) {
+
+		int before = size / 2;
+		int after = size - 1 - before;
+
+		for (int row = fromRow; row < toRow; row++) {
+
+			int rowStart = row * width;
+			int redSum = 0, greenSum = 0, blueSum = 0, count = 0;
+
+			// fill window for first column
+			for (int col = Math.max(0, region.left - before); 
+					col <= region.left + after && col < width; col++) {
+				int index = rowStart + col;
+				if (mask == null || mask.contains(index)) {
+					redSum += PixelColor.red(pixel[index]);
+					greenSum += PixelColor.green(pixel[index]);
+					blueSum += PixelColor.blue(pixel[index]);
+					count++;
+				}
+			}
+
+			for (int col = region.left; col < region.right; col++) {
+
+				int sumIndex = region.index(row, col);
+				rowSums[0][sumIndex] = redSum;
+				rowSums[1][sumIndex] = greenSum;
+				rowSums[2][sumIndex] = blueSum;
+				rowSums[3][sumIndex] = count;
+
+				// pixel entering the window on the right
+				int entering = col + after + 1;
+				if (entering < width) {
+					int enterIndex = rowStart + entering;
+					if (mask == null || mask.contains(enterIndex)) {
+						redSum += PixelColor.red(pixel[enterIndex]);
+						greenSum += PixelColor.green(pixel[enterIndex]);
+						blueSum += PixelColor.blue(pixel[enterIndex]);
+						count++;
+					}
+				}
+
+				// pixel leaving the window on the left
+				int leaving = col - before;
+				if (leaving >= 0) {
+					int leaveIndex = rowStart + leaving;
+					if (mask == null || mask.contains(leaveIndex)) {
+						redSum -= PixelColor.red(pixel[leaveIndex]);
+						greenSum -= PixelColor.green(pixel[leaveIndex]);
+						blueSum -= PixelColor.blue(pixel[leaveIndex]);
+						count--;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Slides a window of size rows down each column of region between fromRow
+	 * and toRow and sums up the row sums inside of it. Assigns the resulting 
+	 * average to masked pixels, the others are left untouched.
+	 *
+	 * @param mask (Mask) masked pixels, null if unmasked
+	 * @param rowSums (int[][]) red, green, blue and count sums of horizontal pass
+	 * @param region (Region) columns to process
+	 * @param outputPixel (int[]) color values to fill
+	 * @param width (int) width of image
+	 * @param fromRow (int) first row to process
+	 * @param toRow (int) row after the last one to process
+	 */
+	private void verticalPass(Mask mask, int[][] rowSums, Region region,
+			int[] outputPixel, int width, int fromRow, int toRow) {
+
+		int before = size / 2;
+		int after = size - 1 - before;
+		int columns = region.right - region.left;
+
+		int[] redSum = new int[columns];
+		int[] greenSum = new int[columns];
+		int[] blueSum = new int[columns];
+		int[] count = new int[columns];
+
+		// fill windows for first row
+		for (int row = Math.max(region.top, fromRow - before);
+				row <= fromRow + after && row < region.bottom; row++)
+			addRow(rowSums, region.index(row, region.left), redSum, greenSum, 
+					blueSum, count, 1);
+
+		for (int row = fromRow; row < toRow; row++) {
+
+			int rowStart = row * width;
+
+			if (mask == null) {
+				for (int col = region.left; col < region.right; col++)
+					outputPixel[rowStart + col] = average(redSum, greenSum, blueSum, 
+							count, col - region.left);
+			} else {
+				for (int span = mask.firstSpan(row); span < mask.endSpan(row); span++)
+					for (int col = mask.spanStart(span); col < mask.spanEnd(span); col++)
+						outputPixel[rowStart + col] = average(redSum, greenSum, blueSum, 
+								count, col - region.left);
+			}
+
+			int entering = row + after + 1;
+			if (entering < region.bottom)
+				addRow(rowSums, region.index(entering, region.left), redSum, 
+						greenSum, blueSum, count, 1);
+
+			int leaving = row - before;
+			if (leaving >= 0)
+				addRow(rowSums, region.index(leaving, region.left), redSum, 
+						greenSum, blueSum, count, -1);
+		}
+	}
+
+	/**
+	 * Slides a window of size pixels along each row between fromRow and toRow
+	 * and stores the sum of the values of a plane inside of it for each column
+	 * of region. Counts valid pixels instead if plane is null. Pixels outside
+	 * of the image or not masked are ignored.
+	 *
+	 * @param plane (byte[]) values of plane, null to count pixels
+	 * @param mask (Mask) masked pixels, null if unmasked
+	 * @param rowSums (int[]) sums to fill
+	 * @param region (Region) columns to store sums for
+	 * @param width (int) width of image
+	 * @param fromRow (int) first row to process
+	 * @param toRow (int) row after the last one to process
+	 */
+	private void planarHorizontalPass(byte[] plane, Mask mask, int[] rowSums,
+			Region region, int width, int fromRow, int toRow) {
+
+		int before = size / 2;
+		int after = size - 1 - before;
+
+		for (int row = fromRow; row < toRow; row++) {
+
+			int rowStart = row * width;
+			int sum = 0;
+
+			// fill window for first column
+			for (int col = Math.max(0, region.left - before); 
+					col <= region.left + after && col < width; col++)
+				sum += value(plane, mask, rowStart + col);
+
+			for (int col = region.left; col < region.right; col++) {
+
+				rowSums[region.index(row, col)] = sum;
+
+				// pixel entering the window on the right
+				int entering = col + after + 1;
+				if (entering < width)
+					sum += value(plane, mask, rowStart + entering);
+
+				// pixel leaving the window on the left
+				int leaving = col - before;
+				if (leaving >= 0)
+					sum -= value(plane, mask, rowStart + leaving);
+			}
+		}
+	}
+
+	/**
+	 * @return (int) value of plane at index, 1 if plane is null, 0 if pixel is
+	 * 		not masked
+	 */
+	private static int value(byte[] plane, Mask mask, int index) {
+
+		if (mask != null && !mask.contains(index))
+			return 0;
+
+		return (plane == null) ? 1 : plane[index] & 0xff;
+	}
+
+	/**
+	 * Performs planar horizontal and vertical pass on rows between firstRow
+	 * and lastRow, each split into tiles by the TileExecutor.
+	 *
+	 * @param plane (byte[]) values of plane, null to count pixels
+	 * @param outputPlane (byte[]) plane to fill, null to store counts
+	 * @see #planarVerticalPass(int[], Region, Mask, int[], byte[], int, int, int, int)
+	 */
+	private void planarPass(byte[] plane, Mask mask, int[] rowSums, Region region,
+			int[] counts, byte[] outputPlane, int width, int height, int firstRow,
+			int lastRow) {
+
+		TileExecutor executor = TileExecutor.getInstance();
+
+		executor.forEachTile(Workload.AREA, width, region.bottom - region.top, 
+				(fromRow, toRow) -> planarHorizontalPass(plane, mask, rowSums, region, width,
+						region.top + fromRow, region.top + toRow));
+		executor.forEachTile(Workload.AREA, width, lastRow + 1 - firstRow, 
+				(fromRow, toRow) -> planarVerticalPass(rowSums, region, mask, counts,
+						outputPlane, width, height, firstRow + fromRow, firstRow + toRow));
+	}
+
+	/**
+	 * Slides a window of size rows down each column of region between fromRow
+	 * and toRow and sums up the row sums inside of it. Stores the sums as
+	 * counts if outputPlane is null, else assigns the average to masked
+	 * pixels of outputPlane, 0 if there are no valid pixels. Without a mask,
+	 * the count is the part of the window inside of the image.
+	 *
+	 * @param rowSums (int[]) sums of planar horizontal pass
+	 * @param region (Region) columns to process
+	 * @param mask (Mask) masked pixels, null if unmasked
+	 * @param counts (int[]) number of valid pixels of each window
+	 * @param outputPlane (byte[]) plane to fill, null to store counts
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @param fromRow (int) first row to process
+	 * @param toRow (int) row after the last one to process
+	 */
+	private void planarVerticalPass(int[] rowSums, Region region, Mask mask,
+			int[] counts, byte[] outputPlane, int width, int height, int fromRow,
+			int toRow) {
+
+		int before = size / 2;
+		int after = size - 1 - before;
+		int columns = region.right - region.left;
+		int[] sum = new int[columns];
+
+		// fill windows for first row
+		for (int row = Math.max(region.top, fromRow - before);
+				row <= fromRow + after && row < region.bottom; row++)
+			for (int col = 0; col < columns; col++)
+				sum[col] += rowSums[region.index(row, region.left) + col];
+
+		for (int row = fromRow; row < toRow; row++) {
+
+			int rowStart = row * width;
+
+			if (outputPlane == null) {
+				System.arraycopy(sum, 0, counts, region.index(row, region.left), columns);
+			} else if (mask == null) {
+				int rows = Math.min(height, row + after + 1) - Math.max(0, row - before);
+				for (int col = region.left; col < region.right; col++) {
+					int count = rows * (Math.min(width, col + after + 1) 
+							- Math.max(0, col - before));
+					outputPlane[rowStart + col] = (byte) (sum[col - region.left] / count);
+				}
+			} else {
+				for (int span = mask.firstSpan(row); span < mask.endSpan(row); span++) {
+					for (int col = mask.spanStart(span); col < mask.spanEnd(span); col++) {
+						int count = counts[region.index(row, col)];
+						outputPlane[rowStart + col] = (byte) ((count == 0)
+								? 0
+								: sum[col - region.left] / count);
+					}
+				}
+			}
+
+			int entering = row + after + 1;
+			if (entering < region.bottom)
+				for (int col = 0; col < columns; col++)
+					sum[col] += rowSums[region.index(entering, region.left) + col];
+
+			int leaving = row - before;
+			if (leaving >= region.top)
+				for (int col = 0; col < columns; col++)
+					sum[col] -= rowSums[region.index(leaving, region.left) + col];
+		}
+	}
+
+	/**
+	 * Calculates average color of a column window, black if there are no 
+	 * valid pixels.
+	 */
+	private static int average(int[] redSum, int[] greenSum, int[] blueSum, 
+			int[] count, int col) {
+		
+		if (count[col] == 0)
+			return 0xff000000;
+		
+		return PixelColor.combine(
+				redSum[col] / count[col],
+				greenSum[col] / count[col],
+				blueSum[col] / count[col]);
+	}
+
+	/**
+	 * Adds (sign 1) or removes (sign -1) the row sums of one row to the
+	 * column windows.
+	 */
+	private static void addRow(int[][] rowSums, int sumStart, int[] redSum,
+			int[] greenSum, int[] blueSum, int[] count, int sign) {
+
+		for (int col = 0; col < count.length; col++) {
+			redSum[col] += sign * rowSums[0][sumStart + col];
+			greenSum[col] += sign * rowSums[1][sumStart + col];
+			blueSum[col] += sign * rowSums[2][sumStart + col];
+			count[col] += sign * rowSums[3][sumStart + col];
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package de.studium.image_processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * BmpStripWriter writes an uncompressed 24 bit BMP file strip by strip, so
+ * the complete image never has to be held in memory. Rows are stored top
+ * to bottom, which BMP marks by a negative height.
+ */
+public class BmpStripWriter extends StripWriter {
+	
+	private static final int FILE_HEADER_SIZE = 14;
+	private static final int INFO_HEADER_SIZE = 40;
+	
+	private final int padding;
+	
+	/**
+	 * Creates file and writes BMP header for given dimensions.
+	 * 
+	 * @param file (File) file to write to
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @throws IOException if file can not be written
+	 */
+	public BmpStripWriter(File file, int width, int height) throws IOException {
+		this(create(file), width, height);
+	}
+	
+	/**
+	 * Writes BMP header for given dimensions to a channel.
+	 * 
+	 * @param channel (WritableByteChannel) channel to write to, closed with writer
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @throws IOException if channel can not be written
+	 */
+	public BmpStripWriter(WritableByteChannel channel, int width, int height) 
+			throws IOException {
+		super(channel, width, height, ByteOrder.LITTLE_ENDIAN);
+		
+		// rows are padded to multiples of 4 bytes
+		this.padding = (width * 3 + 3) / 4 * 4 - width * 3;
+		
+		writeHeader();
+	}
+	
+	/**
+	 * Writes blue, green and red of each pixel, then pads row.
+	 */
+	@Override
+	protected void encodeRows(int[] pixels, int fromRow, int toRow) throws IOException {
+		
+		for (int r = fromRow; r < toRow; r++) {
+			
+			int rowStart = r * width;
+			
+			// BMP stores blue, green, red
+			for (int col = 0; col < width; col++) {
+				int pixel = pixels[rowStart + col];
+				reserve(3)
+						.put((byte) PixelColor.blue(pixel))
+						.put((byte) PixelColor.green(pixel))
+						.put((byte) PixelColor.red(pixel));
+			}
+			
+			ByteBuffer out = reserve(padding);
+			for (int i = 0; i < padding; i++)
+				out.put((byte) 0);
+		}
+	}
+	
+	/**
+	 * Writes file header and info header.
+	 */
+	private void writeHeader() throws IOException {
+		
+		int headerSize = FILE_HEADER_SIZE + INFO_HEADER_SIZE;
+		int imageSize = (width * 3 + padding) * height;
+		ByteBuffer out = reserve(headerSize);
+		
+		// file header
+		out.put((byte) 'B');
+		out.put((byte) 'M');
+		out.putInt(headerSize + imageSize);
+		out.putInt(0);					// reserved
+		out.putInt(headerSize);			// offset of pixel data
+		
+		// info header
+		out.putInt(INFO_HEADER_SIZE);
+		out.putInt(width);
+		out.putInt(-height);			// negative for top to bottom rows
+		out.putShort((short) 1);		// planes
+		out.putShort((short) 24);		// bits per pixel
+		out.putInt(0);					// no compression
+		out.putInt(imageSize);
+		out.putInt(2835);				// 72 dpi
+		out.putInt(2835);
+		out.putInt(0);					// colors in palette
+		out.putInt(0);					// important colors
+	}
+
+}
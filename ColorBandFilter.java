@@ -1,5 +1,7 @@
 package de.studium.image_processing;
 
+import java.util.Arrays;
+
 /**
  * A ColorbandFilter extracts a single colorband (R/G/B) by setting all other 
  * RGB values to 0.
@@ -17,6 +19,11 @@ public class ColorBandFilter extends PixelFilter {
 		this.color = color;
 	}
 	
+	@Override
+	public String getFingerprint() {
+		return super.getFingerprint() + "(" + color + ")";
+	}
+	
 	/**
 	 * Sets RGB values that do not match colorband to 0, does not touch the
 	 * other one.
@@ -24,22 +31,76 @@ public class ColorBandFilter extends PixelFilter {
 	@Override
 	public int calculate(int pixelColor) {
 		
-		ColorContainer inputColor = ColorContainer.fromValue(pixelColor);
-		
 		int red = (color == ColorBand.RED) 
-				? inputColor.getRed()
+				? PixelColor.red(pixelColor)
 				: 0;
 				
 		int green = (color == ColorBand.GREEN) 
-				? inputColor.getGreen()
+				? PixelColor.green(pixelColor)
 				: 0;
 				
 		int blue = (color == ColorBand.BLUE) 
-				? inputColor.getBlue()
+				? PixelColor.blue(pixelColor)
 				: 0;
 		
-		return ColorContainer.fromRGB(red, green, blue).getColorValue();
+		return PixelColor.combine(red, green, blue);
+	
+	}
+	
+	/**
+	 * Each colorband is either kept or set to 0.
+	 */
+	@Override
+	protected LookupTable compile() {
+		return LookupTable.fromBands(
+				value -> (color == ColorBand.RED) ? value : 0,
+				value -> (color == ColorBand.GREEN) ? value : 0,
+				value -> (color == ColorBand.BLUE) ? value : 0);
+	}
+	
+	/**
+	 * Copies plane of colorband, clears the others.
+	 */
+	@Override
+	protected void calculatePlanes(PlanarImage image, PlanarImage output, 
+			int from, int to) {
+		
+		for (ColorBand band : ColorBand.values()) {
+			if (band == color)
+				System.arraycopy(image.getPlane(band), from, output.getPlane(band), 
+						from, to - from);
+			else
+				Arrays.fill(output.getPlane(band), from, to, (byte) 0);
+		}
+	}
 	
+	/**
+	 * Keeps the bits of colorband.
+	 */
+	@Override
+	protected SpanKernel compileSpan() {
+		
+		int bits = getBits();
+		
+		return (imagePixel, outputPixel, from, to) -> {
+			for (int i = from; i < to; i++)
+				outputPixel[i] = imagePixel[i] & bits | 0xff000000;
+		};
+	}
+	
+	@Override
+	SpanKernel compileVector(VectorKernels kernels) {
+		return kernels.colorBand(getBits());
+	}
+	
+	/**
+	 * @return (int) color with all bits of colorband set
+	 */
+	private int getBits() {
+		return PixelColor.combine(
+				(color == ColorBand.RED) ? 0xff : 0,
+				(color == ColorBand.GREEN) ? 0xff : 0,
+				(color == ColorBand.BLUE) ? 0xff : 0);
 	}
 
 }
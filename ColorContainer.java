@@ -9,6 +9,8 @@ import java.awt.Color;
  * 
  * Basically own implementation of java.awt.Color storing and converting
  * capabilities to practice bitshifting. 
+ * 
+ * Creates objects for every color, use PixelColor on hot paths.
  */
 public class ColorContainer {
 
@@ -166,22 +168,7 @@ public class ColorContainer {
 	 * @return (int) 0-255 value of specific colorband in color
 	 */
 	private int extract(int pixelColor, ColorBand colorband) {	
-		int shift;
-		switch(colorband) {
-			case RED:
-				shift = 16;
-				break;
-			case GREEN:
-				shift = 8;
-				break;
-			case BLUE:
-				shift = 0;
-				break;
-			default: 
-				shift = 0;
-				break;
-		}
-		return (pixelColor >> shift) & 0xff;
+		return PixelColor.extract(pixelColor, colorband);
 	}
 	
 	
@@ -197,11 +184,7 @@ public class ColorContainer {
 	 * @return (int) color representation
 	 */
 	private int combine(int redValue, int greenValue, int blueValue) {
-		int pixelColor = 0xff000000;
-		pixelColor |= redValue << 16;
-		pixelColor |= greenValue << 8;
-		pixelColor |= blueValue;
-		return pixelColor;
+		return PixelColor.combine(redValue, greenValue, blueValue);
 	}
 	
 }
@@ -72,6 +72,15 @@ public class ColorReplacementFilter extends PixelFilter {
 		this.replacement = ColorContainer.fromColor(replacement);
 	}
 	
+	/**
+	 * Includes the replacement, so randomly chosen replacements differ.
+	 */
+	@Override
+	public String getFingerprint() {
+		return String.format("%s(%08x,%08x)", super.getFingerprint(), 
+				toReplace.getColorValue(), replacement.getColorValue());
+	}
+	
 	/**
 	 * Checks if given color matches color to replace, if so, returns replacement
 	 * else returns given color
@@ -84,5 +93,32 @@ public class ColorReplacementFilter extends PixelFilter {
 				? replacement.getColorValue()
 				: pixelColor;
 	}
+	
+	/**
+	 * Selects replacement or color without branching. Difference of color to 
+	 * color to replace is 0 only if they match, so the sign of its bits or 
+	 * their negation is set for all other colors.
+	 */
+	@Override
+	protected SpanKernel compileSpan() {
+		
+		int match = toReplace.getColorValue();
+		int replacementValue = replacement.getColorValue();
+		
+		return (imagePixel, outputPixel, from, to) -> {
+			for (int i = from; i < to; i++) {
+				int pixel = imagePixel[i];
+				int difference = pixel ^ match;
+				// all bits set if color does not match
+				int keep = (difference | -difference) >> 31;
+				outputPixel[i] = (pixel & keep) | (replacementValue & ~keep);
+			}
+		};
+	}
+	
+	@Override
+	SpanKernel compileVector(VectorKernels kernels) {
+		return kernels.replace(toReplace.getColorValue(), replacement.getColorValue());
+	}
 
 }
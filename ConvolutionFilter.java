@@ -0,0 +1,524 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * A convolution filter assigns each masked pixel the weighted sum of the
+ * pixels around it, the weights given by a square matrix (kernel) centered
+ * on the pixel. E.g. the kernel
+ *
+ * 		 0 -1  0
+ * 		-1  5 -1
+ * 		 0 -1  0
+ *
+ * sharpens an image. Like for all AreaFilters, pixels outside of the image
+ * or not masked are ignored. If all weights are positive, the sum is
+ * scaled up by the ratio of all weights to the weights of valid pixels, like
+ * an average of the valid pixels. Else the weights of ignored pixels are
+ * added to the center pixel, so e.g. an edge of the image is no edge to
+ * detect.
+ *
+ * Kernels that are the product of a column and a row vector (rank 1), like
+ * a gaussian kernel, are detected and calculated in a horizontal and a
+ * vertical pass, which takes 2 * size instead of size * size steps per pixel.
+ * Weights are converted to fixed point integers, so sums are calculated
+ * without floating point arithmetic.
+ */
+public class ConvolutionFilter extends AreaFilter {
+
+	private static final int SHIFT = 16;	// fractional bits of weights
+	private static final double EPSILON = 1e-9;
+
+	// row sums of separable blocks, kept by each thread for its next tiles
+	private static final ThreadLocal<long[][]> ROW_SUMS = 
+			ThreadLocal.withInitial(() -> new long[4][0]);
+
+	private final double[][] kernel;
+	private final int bias;
+	private final boolean renormalize;
+
+	// weights as fixed point integers
+	private final long[] weights;
+	private final long totalWeight;
+
+	// weights of separable kernel as fixed point integers, null if not separable
+	private final long[] vertical;
+	private final long[] horizontal;
+	private final long separableWeight;
+
+	/**
+	 * Creates ConvolutionFilter without bias.
+	 *
+	 * @see #ConvolutionFilter(double[][], int)
+	 */
+	public ConvolutionFilter(double[][] kernel) {
+		this(kernel, 0);
+	}
+
+	/**
+	 * Creates ConvolutionFilter with a square kernel. The center of the
+	 * kernel is at row and column size / 2.
+	 *
+	 * @param kernel (double[][]) weights, kernel[row][col]
+	 * @param bias (int) value added to each colorband of result
+	 */
+	public ConvolutionFilter(double[][] kernel, int bias) {
+
+		super(kernel.length);
+
+		for (double[] row : kernel)
+			if (row.length != size)
+				throw new IllegalArgumentException("Kernel must be square!");
+
+		this.kernel = new double[size][];
+		for (int row = 0; row < size; row++)
+			this.kernel[row] = kernel[row].clone();
+		this.bias = bias;
+
+		boolean positive = true;
+		weights = new long[size * size];
+		long total = 0;
+		for (int row = 0; row < size; row++) {
+			for (int col = 0; col < size; col++) {
+				positive &= kernel[row][col] >= 0;
+				weights[row * size + col] = toFixed(kernel[row][col]);
+				total += weights[row * size + col];
+			}
+		}
+		totalWeight = total;
+		renormalize = positive;
+
+		double[][] factors = decompose(kernel);
+
+		if (factors == null) {
+			vertical = null;
+			horizontal = null;
+			separableWeight = 0;
+			return;
+		}
+
+		vertical = new long[size];
+		horizontal = new long[size];
+		long verticalSum = 0, horizontalSum = 0;
+		for (int i = 0; i < size; i++) {
+			vertical[i] = toFixed(factors[0][i]);
+			horizontal[i] = toFixed(factors[1][i]);
+			verticalSum += vertical[i];
+			horizontalSum += horizontal[i];
+		}
+		separableWeight = verticalSum * horizontalSum;
+	}
+
+	/**
+	 * Creates gaussian blur, whose kernel reaches three standard deviations
+	 * to each side.
+	 *
+	 * @param size (int) size of kernel
+	 * @return (ConvolutionFilter) gaussian blur filter
+	 */
+	public static ConvolutionFilter gaussian(int size) {
+
+		double sigma = Math.max(size / 6.0, EPSILON);
+		double[] curve = new double[size];
+		double sum = 0;
+
+		for (int i = 0; i < size; i++) {
+			double distance = i - size / 2;
+			curve[i] = Math.exp(-distance * distance / (2 * sigma * sigma));
+			sum += curve[i];
+		}
+
+		double[][] kernel = new double[size][size];
+		for (int row = 0; row < size; row++)
+			for (int col = 0; col < size; col++)
+				kernel[row][col] = curve[row] * curve[col] / (sum * sum);
+
+		return new ConvolutionFilter(kernel);
+	}
+
+	/**
+	 * @return (ConvolutionFilter) filter emphasizing differences to the four
+	 * 		direct neighbours
+	 */
+	public static ConvolutionFilter sharpen() {
+		return new ConvolutionFilter(new double[][] {
+			{  0, -1,  0 },
+			{ -1,  5, -1 },
+			{  0, -1,  0 }
+		});
+	}
+
+	/**
+	 * @return (ConvolutionFilter) filter making an image look like a relief
+	 * 		lit from the top-left
+	 */
+	public static ConvolutionFilter emboss() {
+		return new ConvolutionFilter(new double[][] {
+			{ -2, -1,  0 },
+			{ -1,  1,  1 },
+			{  0,  1,  2 }
+		});
+	}
+
+	/**
+	 * @return (ConvolutionFilter) filter detecting vertical edges, grey where
+	 * 		there is no edge
+	 */
+	public static ConvolutionFilter sobel() {
+		return new ConvolutionFilter(new double[][] {
+			{ -1,  0,  1 },
+			{ -2,  0,  2 },
+			{ -1,  0,  1 }
+		}, 128);
+	}
+
+	@Override
+	public String getFingerprint() {
+		return super.getFingerprint() + Arrays.deepToString(kernel) + bias;
+	}
+
+	/**
+	 * @return (boolean) true if kernel is calculated in two passes
+	 */
+	public boolean isSeparable() {
+		return vertical != null;
+	}
+
+	/**
+	 * Uses calculation of each pixel by superclass if not separable. Else
+	 * calculates tiles of rows by the TileExecutor, each of them with a
+	 * horizontal pass over its rows and the rows around it within reach of
+	 * the kernel and a vertical pass over the sums of the horizontal pass.
+	 * With a mask, only the bounding box of masked pixels is calculated.
+	 */
+	@Override
+	public BufferedImage process(BufferedImage... input) {
+
+		if (!isSeparable())
+			return super.process(input);
+
+		BufferedImage image, mask;
+
+		image = (input.length > 0) ? input[0] : null;
+		mask = (input.length > 1) ? input[1] : null;
+
+		if (image == null) // nothing to process;
+			return null;
+
+		int[] imageArray, outputArray;
+		Mask maskBits;
+		int width, height;
+
+		width = image.getWidth();
+		height = image.getHeight();
+
+		imageArray = DerivedDataCache.getInstance().getPixels(image);
+		maskBits = Mask.of(mask);
+
+		if (maskBits == null) {
+			outputArray = new int[imageArray.length];
+			TileExecutor.getInstance().forEachTile(Workload.AREA, 2 * size, width, 
+					height, (fromRow, toRow) -> separablePass(imageArray, null, outputArray, 
+							width, height, 0, width, fromRow, toRow));
+			return RasterAccess.wrapWithAlpha(outputArray, width, height);
+		}
+
+		// unmasked pixels keep their value
+		outputArray = Arrays.copyOf(imageArray, imageArray.length);
+		if (maskBits.isEmpty())
+			return RasterAccess.wrapWithAlpha(outputArray, width, height);
+
+		int firstRow = maskBits.getMinRow();
+		int left = maskBits.getMinCol();
+		int right = maskBits.getMaxCol() + 1;
+
+		TileExecutor.getInstance().forEachTile(Workload.AREA, 2 * size, width, 
+				maskBits.getMaxRow() + 1 - firstRow,
+				(fromRow, toRow) -> separablePass(imageArray, maskBits, outputArray,
+						width, height, left, right, firstRow + fromRow, firstRow + toRow));
+
+		return RasterAccess.wrapWithAlpha(outputArray, width, height);
+	}
+
+	/**
+	 * Calculates weighted sum of pixels around index with full kernel.
+	 */
+	@Override
+	protected int calculate(int[] pixel, Mask mask, int index, int width, int height) {
+
+		int before = size / 2;
+		int pixelRow = index / width;
+		int pixelCol = index % width;
+		long redSum = 0, greenSum = 0, blueSum = 0, validWeight = 0;
+
+		for (int row = 0; row < size; row++) {
+
+			int imageRow = pixelRow + row - before;
+			if (imageRow < 0 || imageRow >= height)
+				continue;
+
+			for (int col = 0; col < size; col++) {
+
+				int imageCol = pixelCol + col - before;
+				if (imageCol < 0 || imageCol >= width)
+					continue;
+
+				int imageIndex = imageRow * width + imageCol;
+				if (mask != null && !mask.contains(imageIndex))
+					continue;
+
+				long weight = weights[row * size + col];
+				int color = pixel[imageIndex];
+				redSum += weight * PixelColor.red(color);
+				greenSum += weight * PixelColor.green(color);
+				blueSum += weight * PixelColor.blue(color);
+				validWeight += weight;
+			}
+		}
+
+		return toColor(redSum, greenSum, blueSum, validWeight, totalWeight,
+				pixel[index], SHIFT);
+	}
+
+	/**
+	 * Calculates pixels of rows between fromRow and toRow and columns between
+	 * left and right with separated kernel, in blocks of at most tile rows
+	 * of the TileExecutor, so the row sums of a block stay small even if all
+	 * rows are processed at once. Row sums are reused by the calling thread.
+	 *
+	 * @param pixel (int[]) color values of image
+	 * @param mask (Mask) masked pixels, null if unmasked
+	 * @param outputPixel (int[]) color values to fill
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @param left (int) first column to calculate
+	 * @param right (int) column after the last one to calculate
+	 * @param fromRow (int) first row to calculate
+	 * @param toRow (int) row after the last one to calculate
+	 */
+	private void separablePass(int[] pixel, Mask mask, int[] outputPixel,
+			int width, int height, int left, int right, int fromRow, int toRow) {
+
+		int blockRows = TileExecutor.getInstance().getTileRows();
+		long[][] rowSums = getRowSums((Math.min(blockRows, toRow - fromRow) 
+				+ size - 1) * (right - left));
+
+		for (int blockStart = fromRow; blockStart < toRow; blockStart += blockRows)
+			separableBlock(pixel, mask, outputPixel, rowSums, width, height, left, 
+					right, blockStart, Math.min(toRow, blockStart + blockRows));
+	}
+
+	/**
+	 * @return (long[][]) red, green, blue and weight sums of calling thread,
+	 * 		at least length long each
+	 */
+	private static long[][] getRowSums(int length) {
+
+		long[][] rowSums = ROW_SUMS.get();
+
+		if (rowSums[0].length < length) {
+			rowSums = new long[4][length];
+			ROW_SUMS.set(rowSums);
+		}
+		return rowSums;
+	}
+
+	/**
+	 * Calculates pixels of a block of rows. The horizontal pass stores per
+	 * band sums and the sum of valid weights of each row window, the vertical
+	 * pass sums them up weighted for each column window.
+	 *
+	 * @param rowSums (long[][]) red, green, blue and weight sums to fill, large
+	 * 		enough for the rows of block and the rows around it
+	 * @see #separablePass(int[], Mask, int[], int, int, int, int, int, int)
+	 */
+	private void separableBlock(int[] pixel, Mask mask, int[] outputPixel,
+			long[][] rowSums, int width, int height, int left, int right, 
+			int fromRow, int toRow) {
+
+		int before = size / 2;
+		int after = size - 1 - before;
+		int columns = right - left;
+
+		// rows within reach of the kernel
+		int top = Math.max(0, fromRow - before);
+		int bottom = Math.min(height, toRow + after);
+
+		for (int row = top; row < bottom; row++) {
+
+			int rowStart = row * width;
+
+			for (int col = left; col < right; col++) {
+
+				long redSum = 0, greenSum = 0, blueSum = 0, validWeight = 0;
+
+				for (int k = Math.max(0, before - col);
+						k < size && col + k - before < width; k++) {
+
+					int imageIndex = rowStart + col + k - before;
+					if (mask != null && !mask.contains(imageIndex))
+						continue;
+
+					long weight = horizontal[k];
+					int color = pixel[imageIndex];
+					redSum += weight * PixelColor.red(color);
+					greenSum += weight * PixelColor.green(color);
+					blueSum += weight * PixelColor.blue(color);
+					validWeight += weight;
+				}
+
+				int sumIndex = (row - top) * columns + col - left;
+				rowSums[0][sumIndex] = redSum;
+				rowSums[1][sumIndex] = greenSum;
+				rowSums[2][sumIndex] = blueSum;
+				rowSums[3][sumIndex] = validWeight;
+			}
+		}
+
+		for (int row = fromRow; row < toRow; row++) {
+
+			if (mask == null) {
+				for (int col = left; col < right; col++)
+					outputPixel[row * width + col] = verticalSum(pixel, rowSums,
+							width, columns, top, bottom, row, col, left);
+				continue;
+			}
+
+			for (int span = mask.firstSpan(row); span < mask.endSpan(row); span++)
+				for (int col = mask.spanStart(span); col < mask.spanEnd(span); col++)
+					outputPixel[row * width + col] = verticalSum(pixel, rowSums,
+							width, columns, top, bottom, row, col, left);
+		}
+	}
+
+	/**
+	 * Sums up the row sums of the column window around pixel at row and col.
+	 */
+	private int verticalSum(int[] pixel, long[][] rowSums, int width,
+			int columns, int top, int bottom, int row, int col, int left) {
+
+		int before = size / 2;
+		long redSum = 0, greenSum = 0, blueSum = 0, validWeight = 0;
+
+		for (int k = Math.max(0, top - row + before);
+				k < size && row + k - before < bottom; k++) {
+
+			int sumIndex = (row + k - before - top) * columns + col - left;
+			long weight = vertical[k];
+			redSum += weight * rowSums[0][sumIndex];
+			greenSum += weight * rowSums[1][sumIndex];
+			blueSum += weight * rowSums[2][sumIndex];
+			validWeight += weight * rowSums[3][sumIndex];
+		}
+
+		return toColor(redSum, greenSum, blueSum, validWeight, separableWeight,
+				pixel[row * width + col], 2 * SHIFT);
+	}
+
+	/**
+	 * Converts weighted sums to a color. If not all pixels were valid, scales
+	 * sums up or adds the missing weight to the center pixel. Adds bias and
+	 * limits each band to 0-255.
+	 *
+	 * @param redSum (long) weighted sum of red values
+	 * @param greenSum (long) weighted sum of green values
+	 * @param blueSum (long) weighted sum of blue values
+	 * @param validWeight (long) sum of weights of valid pixels
+	 * @param totalWeight (long) sum of all weights
+	 * @param center (int) color of center pixel
+	 * @param shift (int) fractional bits of sums
+	 * @return (int) representation of resulting color
+	 */
+	private int toColor(long redSum, long greenSum, long blueSum,
+			long validWeight, long totalWeight, int center, int shift) {
+
+		if (validWeight != totalWeight) {
+
+			if (renormalize) {
+
+				if (validWeight == 0)	// black if there are no valid pixels
+					return 0xff000000;
+
+				double scale = (double) totalWeight / validWeight;
+				redSum = Math.round(redSum * scale);
+				greenSum = Math.round(greenSum * scale);
+				blueSum = Math.round(blueSum * scale);
+
+			} else {
+
+				long missing = totalWeight - validWeight;
+				redSum += missing * PixelColor.red(center);
+				greenSum += missing * PixelColor.green(center);
+				blueSum += missing * PixelColor.blue(center);
+			}
+		}
+
+		return PixelColor.combine(
+				toValue(redSum, shift),
+				toValue(greenSum, shift),
+				toValue(blueSum, shift));
+	}
+
+	/**
+	 * Rounds fixed point sum, adds bias and limits it to 0-255.
+	 */
+	private int toValue(long sum, int shift) {
+		long value = ((sum + (1L << (shift - 1))) >> shift) + bias;
+		return (int) Math.max(0, Math.min(255, value));
+	}
+
+	/**
+	 * @return (long) weight as fixed point integer
+	 */
+	private static long toFixed(double weight) {
+		return Math.round(weight * (1 << SHIFT));
+	}
+
+	/**
+	 * Splits kernel into column and row vector whose product is the kernel.
+	 * The vectors are the column and the row of the largest weight, both
+	 * divided by the square root of it, so their weights are of similar
+	 * magnitude.
+	 *
+	 * @param kernel (double[][]) square kernel
+	 * @return (double[][]) column and row vector, null if kernel is no
+	 * 		product of vectors
+	 */
+	private static double[][] decompose(double[][] kernel) {
+
+		int size = kernel.length;
+		int pivotRow = 0, pivotCol = 0;
+		double max = 0;
+
+		for (int row = 0; row < size; row++) {
+			for (int col = 0; col < size; col++) {
+				if (Math.abs(kernel[row][col]) > max) {
+					max = Math.abs(kernel[row][col]);
+					pivotRow = row;
+					pivotCol = col;
+				}
+			}
+		}
+
+		if (max == 0)
+			return null;
+
+		double root = Math.sqrt(max);
+		double sign = Math.signum(kernel[pivotRow][pivotCol]);
+		double[] column = new double[size];
+		double[] row = new double[size];
+		for (int i = 0; i < size; i++) {
+			column[i] = kernel[i][pivotCol] / root;
+			row[i] = kernel[pivotRow][i] / root * sign;
+		}
+
+		for (int i = 0; i < size; i++)
+			for (int j = 0; j < size; j++)
+				if (Math.abs(kernel[i][j] - column[i] * row[j]) > EPSILON * max)
+					return null;
+
+		return new double[][] { column, row };
+	}
+
+}
@@ -0,0 +1,290 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * The DerivedDataCache holds data derived from the pixels of an image, like
+ * unpacked color values, masks and integral images. Filters applied to the
+ * same image share them instead of deriving them again.
+ * 
+ * Data is built on first request and kept by identity of the source image.
+ * Images are referenced weakly, so the cache never keeps an image alive and
+ * data of collected images is dropped. Least recently used data is evicted 
+ * once the cache exceeds its size in bytes, which defaults to the system 
+ * property "image_processing.cacheBytes" or 256 MB. Images must not be 
+ * changed while data of them is cached, else it has to be invalidated. 
+ * Callers done with an image invalidate it, so its data is released at once.
+ */
+public class DerivedDataCache {
+	
+	private static final long DEFAULT_MAX_BYTES = 256L << 20;
+	
+	private static DerivedDataCache instance = new DerivedDataCache();
+	
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final ReferenceQueue<BufferedImage> collected = new ReferenceQueue<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private long maxBytes;
+	private long bytes;
+	
+	/**
+	 * Kinds of derived data.
+	 */
+	private enum Kind {
+		PIXELS,
+		MASK,
+		INTEGRAL
+	}
+	
+	/**
+	 * Identifies data by identity of image and kind of data. The image is 
+	 * referenced weakly, keys of collected images only equal themselves.
+	 */
+	private static class Key extends WeakReference<BufferedImage> {
+		
+		final Kind kind;
+		final int hash;
+		
+		Key(BufferedImage image, Kind kind, ReferenceQueue<BufferedImage> queue) {
+			super(image, queue);
+			this.kind = kind;
+			this.hash = System.identityHashCode(image) * 31 + kind.ordinal();
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			
+			if (other == this)
+				return true;
+			if (!(other instanceof Key))
+				return false;
+			
+			BufferedImage image = get();
+			return image != null 
+					&& ((Key) other).get() == image 
+					&& ((Key) other).kind == kind;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+	
+	/**
+	 * Cached data and its size.
+	 */
+	private static class Entry {
+		
+		final Object data;
+		final long bytes;
+		
+		Entry(Object data, long bytes) {
+			this.data = data;
+			this.bytes = bytes;
+		}
+	}
+	
+	/**
+	 * Only one instance exists.
+	 */
+	private DerivedDataCache() {
+		maxBytes = Long.getLong("image_processing.cacheBytes", DEFAULT_MAX_BYTES);
+	}
+	
+	/**
+	 * Returns only instance of DerivedDataCache
+	 * 
+	 * @return (DerivedDataCache) Instance of DerivedDataCache
+	 */
+	public static DerivedDataCache getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Returns color values of image in the layout of getRGB. Arrays of direct
+	 * images are returned without caching, see RasterAccess. Others are
+	 * unpacked once and must not be written to.
+	 * 
+	 * @param image (BufferedImage) image to read
+	 * @return (int[]) color values of image
+	 */
+	public int[] getPixels(BufferedImage image) {
+		
+		if (RasterAccess.isDirect(image))
+			return RasterAccess.getPixels(image);
+		
+		return get(image, Kind.PIXELS, RasterAccess::getPixels, 
+				pixels -> 4L * pixels.length);
+	}
+	
+	/**
+	 * @param mask (BufferedImage) mask image, may be null
+	 * @return (Mask) mask of image, null if image is null
+	 */
+	public Mask getMask(BufferedImage mask) {
+		
+		if (mask == null)
+			return null;
+		
+		return get(mask, Kind.MASK, 
+				source -> new Mask(RasterAccess.getPixels(source), 
+						source.getWidth(), source.getHeight()),
+				Mask::getByteSize);
+	}
+	
+	/**
+	 * Returns integral image of each colorband. Entry (row, col) at index
+	 * row * (width + 1) + col holds the sum of all values above and left of
+	 * pixel (row, col). Sums wrap around on overflow, differences of them
+	 * are still exact as long as the summed area does not overflow.
+	 * 
+	 * @param image (BufferedImage) image to read
+	 * @return (int[][]) red, green and blue integral image
+	 */
+	public int[][] getIntegralImage(BufferedImage image) {
+		return get(image, Kind.INTEGRAL, source -> {
+			
+			int[] pixels = getPixels(source);
+			int width = source.getWidth();
+			int height = source.getHeight();
+			int stride = width + 1;
+			int[][] integral = new int[3][stride * (height + 1)];
+			
+			for (int row = 0; row < height; row++) {
+				int redSum = 0, greenSum = 0, blueSum = 0;
+				for (int col = 0; col < width; col++) {
+					int pixel = pixels[row * width + col];
+					int index = (row + 1) * stride + col + 1;
+					redSum += PixelColor.red(pixel);
+					greenSum += PixelColor.green(pixel);
+					blueSum += PixelColor.blue(pixel);
+					integral[0][index] = integral[0][index - stride] + redSum;
+					integral[1][index] = integral[1][index - stride] + greenSum;
+					integral[2][index] = integral[2][index - stride] + blueSum;
+				}
+			}
+			return integral;
+		}, integral -> 12L * integral[0].length);
+	}
+	
+	/**
+	 * Removes all data derived from image, needed after image has changed.
+	 * 
+	 * @param image (BufferedImage) image that changed
+	 */
+	public synchronized void invalidate(BufferedImage image) {
+		
+		if (image == null)
+			return;
+		
+		for (Kind kind : Kind.values()) {
+			Entry removed = entries.remove(new Key(image, kind, null));
+			if (removed != null)
+				bytes -= removed.bytes;
+		}
+		expunge();
+	}
+	
+	/**
+	 * Removes all data.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+	
+	/**
+	 * Sets size of the cache, evicts least recently used data if exceeded.
+	 * 
+	 * @param maxBytes (long) maximum bytes of cached data
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+	
+	/**
+	 * @return (long) number of requests answered by cached data
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * @return (long) number of requests that had to derive data
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * @return (long) bytes of cached data
+	 */
+	public synchronized long getBytes() {
+		expunge();
+		return bytes;
+	}
+	
+	/**
+	 * Returns cached data or derives and caches it. Data is derived outside
+	 * of the lock, so concurrent misses may derive it more than once.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T get(BufferedImage image, Kind kind, Function<BufferedImage, T> derive, 
+			ToLongFunction<T> size) {
+		
+		synchronized (this) {
+			expunge();
+			Entry entry = entries.get(new Key(image, kind, null));
+			if (entry != null) {
+				hits.incrementAndGet();
+				return (T) entry.data;
+			}
+		}
+		
+		misses.incrementAndGet();
+		T data = derive.apply(image);
+		Entry created = new Entry(data, size.applyAsLong(data));
+		
+		synchronized (this) {
+			Entry replaced = entries.put(new Key(image, kind, collected), created);
+			bytes += created.bytes - ((replaced != null) ? replaced.bytes : 0);
+			evict();
+		}
+		return data;
+	}
+	
+	/**
+	 * Removes entries whose image has been collected.
+	 */
+	private void expunge() {
+		for (Reference<?> key = collected.poll(); key != null; key = collected.poll()) {
+			Entry removed = entries.remove(key);
+			if (removed != null)
+				bytes -= removed.bytes;
+		}
+	}
+	
+	/**
+	 * Removes least recently used entries until cache fits into its size.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+		while (bytes > maxBytes && eldest.hasNext()) {
+			bytes -= eldest.next().getValue().bytes;
+			eldest.remove();
+		}
+	}
+
+}
@@ -9,5 +9,42 @@ import java.awt.image.BufferedImage;
 public interface Filter {
 	
 	public BufferedImage process(BufferedImage ... input);
+	
+	/**
+	 * Checks if filter processes planar images directly. ChainFilters only
+	 * process planes if all of their stages do.
+	 * 
+	 * @return (boolean) true if process of planar images does not convert
+	 */
+	public default boolean isPlanar() {
+		return false;
+	}
+	
+	/**
+	 * Processes planar image. Filters working on colorbands override it, 
+	 * others convert image to a BufferedImage and the output back.
+	 * 
+	 * @param image (PlanarImage) image to process
+	 * @param mask (BufferedImage) mask image, null if unmasked
+	 * @return (PlanarImage) processed image
+	 */
+	public default PlanarImage process(PlanarImage image, BufferedImage mask) {
+		
+		if (image == null)	// nothing to process
+			return null;
+		
+		return PlanarImage.of(process(image.toBufferedImage(), mask));
+	}
+	
+	/**
+	 * Describes filter and all parameters that influence its output, so 
+	 * filters with the same fingerprint give the same output. Filters with
+	 * parameters must override it.
+	 * 
+	 * @return (String) stable description of filter
+	 */
+	public default String getFingerprint() {
+		return getClass().getName();
+	}
 
 }
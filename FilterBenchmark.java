@@ -0,0 +1,384 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * FilterBenchmark measures throughput and allocation of every filter in the
+ * FilterStorage for several image resolutions, with and without mask.
+ * 
+ * Results can be saved as baseline and later runs compared against it. The
+ * comparison fails if throughput of any filter dropped by more than the
+ * tolerance.
+ * 
+ * Usage:
+ * 
+ * 		FilterBenchmark [-r 1,12,48] [-f blur_3,warhol] [-w 3] [-i 5]
+ * 				[-save file] [-baseline file] [-tolerance 10] [-span both]
+ * 				[-vector both] [-check alloc]
+ * 
+ * -r resolutions in megapixels, -f filters to measure (default all), -w
+ * warm-up and -i measured iterations, -save stores results, -baseline
+ * compares with stored results, -tolerance is the allowed drop in percent,
+ * -span on / off / both measures PixelFilters with span kernels, pixel by
+ * pixel (suffix /scalar) or both. -vector on / off / both measures span
+ * kernels using the Vector API, plain span kernels (suffix /plain) or both,
+ * which needs "--add-modules jdk.incubator.vector".
+ * 
+ * -check alloc runs every filter instead and fails if any of them allocates
+ * per pixel in steady state. Bytes allocated by the calling thread and the
+ * tile workers are counted without the output image. Up to 12 bytes per 
+ * pixel are allowed for buffers allocated once per image, like row sums,
+ * as any object allocated per pixel takes at least 16 bytes.
+ */
+public class FilterBenchmark {
+	
+	// buffers per image, like row sums, are allowed, the smallest object
+	// allocated per pixel would take 16 bytes
+	private static final double WORKING_BYTES_PER_PIXEL = 12;
+
+	private int[] megapixels = { 1, 12, 48 };
+	private List<String> keys = FilterStorage.getInstance().getKeys();
+	private int warmups = 3;
+	private int iterations = 5;
+	private String savePath;
+	private String baselinePath;
+	private double tolerance = 10;
+	private boolean[] spanKernels = { PixelFilter.isSpanKernels() };
+	private boolean[] vectorKernels = { PixelFilter.isVectorKernels() };
+	private boolean checkAllocation;
+	
+	/**
+	 * Result of a benchmarked combination.
+	 */
+	private static class Result {
+		
+		final String name;
+		final double pixelsPerSecond;
+		final double bytesPerOp;
+		
+		Result(String name, double pixelsPerSecond, double bytesPerOp) {
+			this.name = name;
+			this.pixelsPerSecond = pixelsPerSecond;
+			this.bytesPerOp = bytesPerOp;
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		
+		FilterBenchmark benchmark = new FilterBenchmark();
+		benchmark.parse(args);
+		
+		if (benchmark.checkAllocation) {
+			if (!benchmark.checkAllocation())
+				System.exit(1);
+			return;
+		}
+		
+		List<Result> results = benchmark.run();
+		
+		if (benchmark.savePath != null)
+			benchmark.save(results);
+		
+		if (benchmark.baselinePath != null && !benchmark.compare(results))
+			System.exit(1);
+	}
+	
+	/**
+	 * Reads tags of command line.
+	 */
+	private void parse(String[] args) {
+		
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			
+			String value = args[i + 1];
+			
+			switch (args[i]) {
+				case "-r":
+					megapixels = Arrays.stream(value.split(","))
+							.mapToInt(Integer::parseInt).toArray();
+					break;
+				case "-f":
+					keys = Arrays.asList(value.split(","));
+					break;
+				case "-w":
+					warmups = Integer.parseInt(value);
+					break;
+				case "-i":
+					iterations = Integer.parseInt(value);
+					break;
+				case "-save":
+					savePath = value;
+					break;
+				case "-baseline":
+					baselinePath = value;
+					break;
+				case "-tolerance":
+					tolerance = Double.parseDouble(value);
+					break;
+				case "-span":
+					spanKernels = value.equals("both") 
+							? new boolean[] { true, false }
+							: new boolean[] { value.equals("on") };
+					break;
+				case "-vector":
+					vectorKernels = value.equals("both") 
+							? new boolean[] { true, false }
+							: new boolean[] { value.equals("on") };
+					if (vectorKernels[0] && !PixelFilter.isVectorKernels())
+						throw new IllegalArgumentException("Vector API not available, "
+								+ "run with --add-modules jdk.incubator.vector!");
+					break;
+				case "-check":
+					if (!value.equals("alloc"))
+						throw new IllegalArgumentException("Unknown check " + value + "!");
+					checkAllocation = true;
+					break;
+				default:
+					throw new IllegalArgumentException("Invalid tag " + args[i] + "!");
+			}
+		}
+	}
+	
+	/**
+	 * Benchmarks every combination of resolution, filter and mask.
+	 * 
+	 * @return (List) results of all combinations
+	 */
+	private List<Result> run() {
+		
+		FilterStorage filters = FilterStorage.getInstance();
+		List<Result> results = new ArrayList<>();
+		
+		System.out.printf("%-32s %16s %16s%n", "benchmark", "pixels/s", "bytes/op");
+		
+		for (int mp : megapixels) {
+			
+			int width = (int) Math.sqrt(mp * 1_000_000 * 4 / 3.0);
+			int height = mp * 1_000_000 / width;
+			BufferedImage image = createImage(width, height);
+			BufferedImage mask = createMask(width, height);
+			
+			for (String key : keys) {
+				
+				Filter filter = filters.get(key);
+				
+				if (filter == null)
+					throw new IllegalArgumentException("Filter unknown: " + key);
+				
+				for (boolean span : spanKernels) {
+					for (boolean vector : vectorKernels) {
+						
+						// without span kernels, vector kernels are not used either
+						if (!span && vector && vectorKernels.length > 1)
+							continue;
+						
+						PixelFilter.setSpanKernels(span);
+						PixelFilter.setVectorKernels(vector);
+						
+						for (boolean masked : new boolean[] { false, true }) {
+							String name = key + "/" + mp + "MP" + (masked ? "/mask" : "") 
+									+ (span ? "" : "/scalar") 
+									+ (span && !vector && vectorKernels.length > 1 ? "/plain" : "");
+							Result result = measure(name, filter, image, masked ? mask : null);
+							System.out.printf("%-32s %16.0f %16.0f%n", 
+									name, result.pixelsPerSecond, result.bytesPerOp);
+							results.add(result);
+						}
+					}
+				}
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Runs warm-up iterations, then measures time and allocated bytes of
+	 * all threads over the measured iterations.
+	 */
+	private Result measure(String name, Filter filter, BufferedImage image, 
+			BufferedImage mask) {
+		
+		for (int i = 0; i < warmups; i++)
+			filter.process(image, mask);
+		
+		long bytes = FilterMetrics.allocatedBytes();
+		long start = System.nanoTime();
+		
+		for (int i = 0; i < iterations; i++)
+			filter.process(image, mask);
+		
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double pixels = (double) image.getWidth() * image.getHeight() * iterations;
+		
+		return new Result(name, pixels / seconds, 
+				(double) (FilterMetrics.allocatedBytes() - bytes) / iterations);
+	}
+	
+	/**
+	 * Runs process of every filter on an image of the first resolution, with
+	 * and without mask, and measures the bytes allocated per pixel beyond 
+	 * the output image, on the calling thread and the tile workers.
+	 * 
+	 * @return (boolean) false if any filter allocates per pixel in steady state
+	 */
+	private boolean checkAllocation() {
+		
+		FilterStorage filters = FilterStorage.getInstance();
+		int width = (int) Math.sqrt(megapixels[0] * 1_000_000 * 4 / 3.0);
+		int height = megapixels[0] * 1_000_000 / width;
+		BufferedImage image = createImage(width, height);
+		BufferedImage mask = createMask(width, height);
+		boolean passed = true;
+		
+		System.out.printf("%-32s %16s%n", "benchmark", "bytes/pixel");
+		
+		for (String key : keys) {
+			
+			Filter filter = filters.get(key);
+			
+			if (filter == null)
+				throw new IllegalArgumentException("Filter unknown: " + key);
+			
+			for (boolean masked : new boolean[] { false, true }) {
+				
+				String name = key + (masked ? "/mask" : "");
+				double bytesPerPixel = measureAllocation(filter, image, masked ? mask : null);
+				boolean allocates = bytesPerPixel > WORKING_BYTES_PER_PIXEL;
+				
+				System.out.printf("%-32s %16.4f%s%n", name, bytesPerPixel, 
+						allocates ? "  ALLOCATES" : "");
+				passed &= !allocates;
+			}
+		}
+		
+		System.out.println(passed 
+				? "No allocation per pixel in steady state" 
+				: "Filters allocate per pixel");
+		return passed;
+	}
+	
+	/**
+	 * Runs filter for warm-up and measured iterations, each recorded by 
+	 * FilterMetrics so tiles of the TileExecutor are counted. The fewest
+	 * bytes of any measured iteration are taken, as the JIT compiler or the
+	 * counter itself may allocate once in a while.
+	 * 
+	 * @return (double) bytes allocated per pixel in steady state, without 
+	 * 		the pixels of the output image
+	 */
+	private double measureAllocation(Filter filter, BufferedImage image, 
+			BufferedImage mask) {
+		
+		long pixels = (long) image.getWidth() * image.getHeight();
+		long fewest = Long.MAX_VALUE;
+		
+		for (int i = 0; i < warmups + iterations; i++) {
+			
+			FilterMetrics metrics = new FilterMetrics();
+			FilterMetrics.Recording recording = metrics.begin("check", pixels);
+			BufferedImage output = filter.process(image, mask);
+			recording.end();
+			DerivedDataCache.getInstance().invalidate(output);
+			
+			long bytes = metrics.get("check").getAllocatedBytes() 
+					- ((output != null) ? 4L * output.getWidth() * output.getHeight() : 0);
+			
+			if (i >= warmups)
+				fewest = Math.min(fewest, bytes);
+		}
+		return (double) fewest / pixels;
+	}
+	
+	/**
+	 * Stores pixels per second of results as properties.
+	 */
+	private void save(List<Result> results) throws IOException {
+		
+		Properties properties = new Properties();
+		for (Result result : results)
+			properties.setProperty(result.name, Double.toString(result.pixelsPerSecond));
+		
+		try (OutputStream out = new FileOutputStream(savePath)) {
+			properties.store(out, "FilterBenchmark pixels per second");
+		}
+	}
+	
+	/**
+	 * Compares results with baseline.
+	 * 
+	 * @return (boolean) false if any throughput dropped beyond tolerance
+	 */
+	private boolean compare(List<Result> results) throws IOException {
+		
+		Properties baseline = new Properties();
+		try (InputStream in = new FileInputStream(baselinePath)) {
+			baseline.load(in);
+		}
+		
+		boolean passed = true;
+		
+		for (Result result : results) {
+			
+			String stored = baseline.getProperty(result.name);
+			if (stored == null)
+				continue;
+			
+			double change = (result.pixelsPerSecond / Double.parseDouble(stored) - 1) * 100;
+			
+			if (change < -tolerance) {
+				System.out.printf("REGRESSION %s: %.1f %%%n", result.name, change);
+				passed = false;
+			}
+		}
+		
+		System.out.println(passed 
+				? "No regression beyond " + tolerance + " %" 
+				: "Throughput dropped beyond " + tolerance + " %");
+		return passed;
+	}
+	
+	/**
+	 * Creates image of gradients with noise.
+	 */
+	private static BufferedImage createImage(int width, int height) {
+		
+		Random random = new Random(42);
+		int[] pixels = new int[width * height];
+		
+		for (int i = 0; i < pixels.length; i++) {
+			int row = i / width;
+			int col = i % width;
+			pixels[i] = PixelColor.combine(
+					(col * 255 / width + random.nextInt(16)) & 0xff,
+					(row * 255 / height + random.nextInt(16)) & 0xff,
+					random.nextInt(256));
+		}
+		return RasterAccess.wrapWithAlpha(pixels, width, height);
+	}
+	
+	/**
+	 * Creates mask with a white ellipse in the center.
+	 */
+	private static BufferedImage createMask(int width, int height) {
+		
+		int[] pixels = new int[width * height];
+		
+		for (int i = 0; i < pixels.length; i++) {
+			double x = (i % width - width / 2.0) / (width / 4.0);
+			double y = (i / width - height / 2.0) / (height / 4.0);
+			pixels[i] = (x * x + y * y <= 1) ? 0xffffffff : 0xff000000;
+		}
+		return RasterAccess.wrapWithAlpha(pixels, width, height);
+	}
+	
+}
@@ -0,0 +1,43 @@
+package de.studium.image_processing;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event of a filter run or a stage of a chain, 
+ * committed by FilterMetrics. Its duration is the wall time of the run.
+ */
+@Name("de.studium.image_processing.Filter")
+@Label("Filter")
+@Category("Image Processing")
+@Description("Run of an instrumented filter or chain stage")
+class FilterEvent extends Event {
+
+	@Label("Key")
+	String key;
+
+	@Label("Pixels")
+	long pixels;
+
+	@Label("Unpack Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long unpackNanos;
+
+	@Label("Compute Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long computeNanos;
+
+	@Label("Pack Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long packNanos;
+
+	@Label("Allocated")
+	@DataAmount(DataAmount.BYTES)
+	long allocatedBytes;
+
+}
@@ -0,0 +1,307 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A FilterGraph computes the outputs of several filters and chains on the
+ * same image without computing a shared prefix twice. Chains are expanded
+ * into their filters and merged into a tree, whose nodes are keyed by the
+ * filter instance and the node of its input. So the "multithreshold" step
+ * of "warhol" and the "multithreshold" filter itself, both the same 
+ * instance applied to the input image, are computed once.
+ *
+ * Paths without branches or outputs in between are processed as one 
+ * segment by a ChainFilter, so adjacent PixelFilters are still fused. 
+ * Segments run on the workers as soon as their input is computed, so
+ * independent branches run concurrently. Each intermediate image is 
+ * released as soon as the last segment and output handler using it is 
+ * done, including its data in the DerivedDataCache.
+ */
+public class FilterGraph {
+
+	private final Node root = new Node(null);
+	private FilterMetrics metrics;
+
+	/**
+	 * Called with each output.
+	 */
+	@FunctionalInterface
+	public interface OutputHandler {
+
+		/**
+		 * @param name (String) name output was requested with
+		 * @param output (BufferedImage) output, released when handler returns
+		 * @throws Exception if output can not be handled
+		 */
+		void accept(String name, BufferedImage output) throws Exception;
+	}
+
+	/**
+	 * Filter applied to the output of its parent node.
+	 */
+	private static final class Node {
+
+		final Filter filter;
+		final Map<Filter, Node> children = new IdentityHashMap<>();
+		final List<String> outputs = new ArrayList<>();
+
+		Node(Filter filter) {
+			this.filter = filter;
+		}
+	}
+
+	/**
+	 * Filters of a path without branches, processed as one task.
+	 */
+	private static final class Segment {
+
+		final Filter filter;
+		final List<String> outputs;
+		final List<Segment> children = new ArrayList<>();
+		final String label;
+
+		// output and number of children and handlers still using it
+		volatile BufferedImage image;
+		AtomicInteger users;
+
+		Segment(Filter filter, List<String> outputs, String label) {
+			this.filter = filter;
+			this.outputs = outputs;
+			this.label = label;
+		}
+	}
+
+	/**
+	 * Adds a requested output. Chains are split into their filters, so
+	 * filters they share with other outputs are computed once.
+	 *
+	 * @param name (String) name to pass to the handler with the output
+	 * @param filter (Filter) filter or chain computing the output
+	 */
+	public void add(String name, Filter filter) {
+
+		List<Filter> steps = new ArrayList<>();
+		expand(filter, steps);
+
+		Node node = root;
+		for (Filter step : steps)
+			node = node.children.computeIfAbsent(step, Node::new);
+
+		node.outputs.add(name);
+	}
+
+	/**
+	 * Records each segment by an InstrumentedFilter, keyed by the outputs
+	 * it ends with or the outputs sharing it.
+	 *
+	 * @param metrics (FilterMetrics) metrics to record in, null to not record
+	 */
+	public void setMetrics(FilterMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return (int) number of filters to process, after merging shared ones
+	 */
+	public int getStepCount() {
+		return countSteps(root);
+	}
+
+	/**
+	 * Computes all outputs and waits until all handlers are done. Outputs
+	 * of failed filters, and of all filters after them, are not handled.
+	 *
+	 * @param image (BufferedImage) image to process, not released
+	 * @param mask (BufferedImage) mask image, null if unmasked
+	 * @param workers (ExecutorService) executor processing segments
+	 * @param handlers (ExecutorService) executor calling the handler
+	 * @param handler (OutputHandler) handler called with each output
+	 * @return (Map) failure of each output that was not handled
+	 */
+	public Map<String, Throwable> process(BufferedImage image, BufferedImage mask,
+			ExecutorService workers, ExecutorService handlers, OutputHandler handler) {
+
+		Map<String, Throwable> failures = new ConcurrentHashMap<>();
+		Phaser running = new Phaser(1);
+
+		// outputs without any filter are the image itself
+		for (String name : root.outputs)
+			handle(name, image, null, handlers, handler, failures, running);
+
+		for (Segment segment : compile(root))
+			schedule(segment, image, null, mask, workers, handlers, handler, failures, running);
+
+		running.arriveAndAwaitAdvance();
+		return failures;
+	}
+
+	/**
+	 * Processes segment once its input is computed, then schedules its 
+	 * children and handlers. If workers reject it, its outputs fail.
+	 */
+	private void schedule(Segment segment, BufferedImage input, Segment source, 
+			BufferedImage mask, ExecutorService workers, ExecutorService handlers, 
+			OutputHandler handler, Map<String, Throwable> failures, Phaser running) {
+
+		try {
+			running.register();
+			workers.execute(() -> {
+				try {
+					BufferedImage output = segment.filter.process(input, mask);
+
+					segment.image = output;
+					segment.users = new AtomicInteger(
+							segment.children.size() + segment.outputs.size());
+
+					for (String name : segment.outputs)
+						handle(name, output, segment, handlers, handler, failures, running);
+					for (Segment child : segment.children)
+						schedule(child, output, segment, mask, workers, handlers, handler, 
+								failures, running);
+
+				} catch (Throwable e) {
+					fail(segment, e, failures);
+				} finally {
+					release(source);
+					running.arriveAndDeregister();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			fail(segment, e, failures);
+			release(source);
+			running.arriveAndDeregister();
+		}
+	}
+
+	/**
+	 * Calls handler with an output, then releases it. If handlers reject 
+	 * it, the output fails.
+	 */
+	private static void handle(String name, BufferedImage output, Segment source,
+			ExecutorService handlers, OutputHandler handler, 
+			Map<String, Throwable> failures, Phaser running) {
+
+		try {
+			running.register();
+			handlers.execute(() -> {
+				try {
+					handler.accept(name, output);
+				} catch (Throwable e) {
+					failures.put(name, e);
+				} finally {
+					release(source);
+					running.arriveAndDeregister();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			failures.put(name, e);
+			release(source);
+			running.arriveAndDeregister();
+		}
+	}
+
+	/**
+	 * Releases output of a segment if nothing uses it anymore.
+	 */
+	private static void release(Segment source) {
+
+		if (source == null || source.users.decrementAndGet() > 0)
+			return;
+
+		DerivedDataCache.getInstance().invalidate(source.image);
+		source.image = null;
+	}
+
+	/**
+	 * Records failure for all outputs of segment and the segments after it.
+	 */
+	private static void fail(Segment segment, Throwable e, Map<String, Throwable> failures) {
+		for (String name : segment.outputs)
+			failures.put(name, e);
+		for (Segment child : segment.children)
+			fail(child, e, failures);
+	}
+
+	/**
+	 * Merges paths without branches or outputs in between into segments.
+	 *
+	 * @return (List) segments processing the output of node
+	 */
+	private List<Segment> compile(Node node) {
+
+		List<Segment> segments = new ArrayList<>();
+
+		for (Node child : node.children.values()) {
+
+			List<Filter> steps = new ArrayList<>();
+			Node end = child;
+			steps.add(end.filter);
+
+			while (end.outputs.isEmpty() && end.children.size() == 1) {
+				end = end.children.values().iterator().next();
+				steps.add(end.filter);
+			}
+
+			Filter filter = steps.get(0);
+			if (steps.size() > 1) {
+				ChainFilter chain = new ChainFilter();
+				for (Filter step : steps)
+					chain.add(step);
+				filter = chain;
+			}
+
+			String label = (end.outputs.isEmpty())
+					? "prefix of " + String.join("+", collectOutputs(end, new ArrayList<>()))
+					: String.join("+", end.outputs);
+			if (metrics != null)
+				filter = new InstrumentedFilter(label, filter, metrics);
+
+			Segment segment = new Segment(filter, end.outputs, label);
+			segment.children.addAll(compile(end));
+			segments.add(segment);
+		}
+		return segments;
+	}
+
+	/**
+	 * @return (List) names of all outputs of node and the nodes after it
+	 */
+	private static List<String> collectOutputs(Node node, List<String> names) {
+		names.addAll(node.outputs);
+		for (Node child : node.children.values())
+			collectOutputs(child, names);
+		return names;
+	}
+
+	/**
+	 * @return (int) number of nodes after node
+	 */
+	private static int countSteps(Node node) {
+		int steps = 0;
+		for (Node child : node.children.values())
+			steps += 1 + countSteps(child);
+		return steps;
+	}
+
+	/**
+	 * Adds filters of chains, nested ones included, or filter itself.
+	 */
+	private static void expand(Filter filter, List<Filter> steps) {
+		if (filter instanceof ChainFilter) {
+			for (Filter step : ((ChainFilter) filter).toApply)
+				expand(step, steps);
+		} else {
+			steps.add(filter);
+		}
+	}
+
+}
@@ -0,0 +1,437 @@
+package de.studium.image_processing;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FilterMetrics collects measurements of filter runs by key, like the key
+ * of the FilterStorage or "warhol/2:BlurFilter" for the third stage of a
+ * chain. For each key it sums wall time of unpacking input, computing and
+ * packing output, pixels and allocated bytes, and keeps a histogram of
+ * latencies to estimate percentiles.
+ *
+ * Runs are measured by a Recording, which is started by begin, marks the
+ * end of each phase and is committed by end. Each committed Recording is
+ * also emitted as FilterEvent to Java Flight Recorder, so filter runs can
+ * be correlated with GC activity.
+ *
+ * Allocated bytes are read from the allocation counter of the thread that
+ * runs the recording. Tiles the TileExecutor processes on its workers are
+ * charged to the recording running on the thread that dispatched them, and
+ * to the recordings it is nested in, so concurrent runs do not count each 
+ * other's allocations.
+ */
+public class FilterMetrics {
+
+	private static FilterMetrics instance;
+
+	private static final com.sun.management.ThreadMXBean THREADS = 
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private static final ThreadLocal<Recording> CURRENT = new ThreadLocal<>();
+
+	// latencies are counted in buckets of 1/8 of a power of two
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int BUCKETS = 64 << SUB_BUCKET_BITS;
+
+	private final Map<String, Stats> stats = new TreeMap<>();
+
+	/**
+	 * Measurements of one key.
+	 */
+	public static class Stats {
+
+		private final String key;
+		private long count;
+		private long totalNanos;
+		private long unpackNanos;
+		private long computeNanos;
+		private long packNanos;
+		private long pixels;
+		private long allocatedBytes;
+		private long maxNanos;
+		private final long[] latencies = new long[BUCKETS];
+
+		Stats(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return (String) key of measured filter or stage
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * @return (long) number of runs
+		 */
+		public synchronized long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return (long) wall time of all runs in nanoseconds
+		 */
+		public synchronized long getTotalNanos() {
+			return totalNanos;
+		}
+
+		/**
+		 * @return (long) time spent unpacking input in nanoseconds
+		 */
+		public synchronized long getUnpackNanos() {
+			return unpackNanos;
+		}
+
+		/**
+		 * @return (long) time spent computing in nanoseconds
+		 */
+		public synchronized long getComputeNanos() {
+			return computeNanos;
+		}
+
+		/**
+		 * @return (long) time spent packing output in nanoseconds
+		 */
+		public synchronized long getPackNanos() {
+			return packNanos;
+		}
+
+		/**
+		 * @return (long) pixels processed by all runs
+		 */
+		public synchronized long getPixels() {
+			return pixels;
+		}
+
+		/**
+		 * @return (long) bytes allocated during all runs
+		 */
+		public synchronized long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		/**
+		 * @return (double) pixels processed per second of wall time
+		 */
+		public synchronized double getPixelsPerSecond() {
+			return (totalNanos > 0) ? pixels * 1e9 / totalNanos : 0;
+		}
+
+		/**
+		 * Estimates latency below which a share of runs finished, accurate
+		 * to 1/8 of its power of two.
+		 *
+		 * @param percentile (double) share of runs, 0-100
+		 * @return (long) latency in nanoseconds, 0 without runs
+		 */
+		public synchronized long getPercentileNanos(double percentile) {
+
+			if (count == 0)
+				return 0;
+
+			long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				seen += latencies[bucket];
+				if (seen >= rank)
+					return Math.min(maxNanos, upperBound(bucket));
+			}
+			return maxNanos;
+		}
+
+		/**
+		 * @return (long) longest latency in nanoseconds
+		 */
+		public synchronized long getMaxNanos() {
+			return maxNanos;
+		}
+
+		/**
+		 * Adds a run.
+		 */
+		private synchronized void add(Recording recording, long total, long allocated) {
+			count++;
+			totalNanos += total;
+			unpackNanos += recording.unpackNanos;
+			computeNanos += recording.computeNanos;
+			packNanos += recording.packNanos;
+			pixels += recording.pixels;
+			allocatedBytes += allocated;
+			maxNanos = Math.max(maxNanos, total);
+			latencies[bucket(total)]++;
+		}
+
+		/**
+		 * @return (String) measurements as JSON object
+		 */
+		synchronized String toJson() {
+			return String.format(Locale.ROOT, "{\"key\": \"%s\", \"count\": %d, "
+					+ "\"totalMs\": %.3f, \"unpackMs\": %.3f, \"computeMs\": %.3f, "
+					+ "\"packMs\": %.3f, \"pixels\": %d, \"pixelsPerSecond\": %.0f, "
+					+ "\"allocatedBytes\": %d, \"p50Ms\": %.3f, \"p90Ms\": %.3f, "
+					+ "\"p99Ms\": %.3f, \"maxMs\": %.3f}",
+					key.replace("\\", "\\\\").replace("\"", "\\\""), count, 
+					totalNanos / 1e6, unpackNanos / 1e6, computeNanos / 1e6, 
+					packNanos / 1e6, pixels, getPixelsPerSecond(), allocatedBytes, 
+					getPercentileNanos(50) / 1e6, getPercentileNanos(90) / 1e6, 
+					getPercentileNanos(99) / 1e6, maxNanos / 1e6);
+		}
+	}
+
+	/**
+	 * Measurement of a single run. Phases are marked in order, a phase not
+	 * marked took no time.
+	 */
+	public static class Recording {
+
+		/**
+		 * Recording that measures nothing.
+		 */
+		static final Recording NONE = new Recording(null, null, 0);
+
+		private final FilterMetrics metrics;
+		private final String key;
+		private final long pixels;
+		private final long start;
+		private final long startAllocated;
+		private final Recording parent;
+		private final LongAdder workerAllocated = new LongAdder();
+		private final FilterEvent event = new FilterEvent();
+		private long last;
+		private long unpackNanos;
+		private long computeNanos;
+		private long packNanos;
+
+		private Recording(FilterMetrics metrics, String key, long pixels) {
+			this.metrics = metrics;
+			this.key = key;
+			this.pixels = pixels;
+			this.parent = (metrics != null) ? CURRENT.get() : null;
+			if (metrics != null)
+				CURRENT.set(this);
+			this.startAllocated = (metrics != null) ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+			this.start = System.nanoTime();
+			this.last = start;
+			event.begin();
+		}
+
+		/**
+		 * Ends unpacking of input.
+		 */
+		public void unpacked() {
+			if (metrics == null)
+				return;
+			long now = System.nanoTime();
+			unpackNanos += now - last;
+			last = now;
+		}
+
+		/**
+		 * Ends computing of output.
+		 */
+		public void computed() {
+			if (metrics == null)
+				return;
+			long now = System.nanoTime();
+			computeNanos += now - last;
+			last = now;
+		}
+
+		/**
+		 * Starts recording of a stage of a chain, keyed by key of this
+		 * recording, index and class of stage.
+		 *
+		 * @param index (int) index of stage
+		 * @param stage (Filter) filter of stage
+		 * @param pixels (long) pixels processed by stage
+		 * @return (Recording) started recording of stage
+		 */
+		public Recording stage(int index, Filter stage, long pixels) {
+
+			if (metrics == null)
+				return NONE;
+
+			return metrics.begin(key + "/" + index + ":" + stage.getClass().getSimpleName(),
+					pixels);
+		}
+
+		/**
+		 * @return (Recording) recording running on calling thread, null if none
+		 */
+		static Recording current() {
+			return CURRENT.get();
+		}
+
+		/**
+		 * Runs tile work on another thread and charges its allocated bytes
+		 * to this recording and the recordings it is nested in. Work started
+		 * by the tile is charged the same way.
+		 *
+		 * @param work (Runnable) work to run on calling thread
+		 */
+		void charge(Runnable work) {
+
+			Recording previous = CURRENT.get();
+			CURRENT.set(this);
+			long bytes = THREADS.getCurrentThreadAllocatedBytes();
+
+			try {
+				work.run();
+			} finally {
+				bytes = THREADS.getCurrentThreadAllocatedBytes() - bytes;
+				CURRENT.set(previous);
+				for (Recording recording = this; recording != null; recording = recording.parent)
+					recording.workerAllocated.add(bytes);
+			}
+		}
+
+		/**
+		 * Ends packing of output and adds run to metrics. Must be called on
+		 * the thread that began the recording.
+		 */
+		public void end() {
+
+			if (metrics == null)
+				return;
+
+			CURRENT.set(parent);
+
+			long now = System.nanoTime();
+			packNanos += now - last;
+			long total = now - start;
+			long allocated = THREADS.getCurrentThreadAllocatedBytes() - startAllocated
+					+ workerAllocated.sum();
+
+			metrics.getOrCreate(key).add(this, total, allocated);
+
+			event.end();
+			if (event.shouldCommit()) {
+				event.key = key;
+				event.pixels = pixels;
+				event.unpackNanos = unpackNanos;
+				event.computeNanos = computeNanos;
+				event.packNanos = packNanos;
+				event.allocatedBytes = allocated;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Creates empty metrics.
+	 */
+	FilterMetrics() {
+	}
+
+	/**
+	 * @return (FilterMetrics) metrics shared by all instrumented filters
+	 */
+	public static synchronized FilterMetrics getInstance() {
+		if (instance == null)
+			instance = new FilterMetrics();
+		return instance;
+	}
+
+	/**
+	 * Starts recording a run.
+	 *
+	 * @param key (String) key of filter or stage
+	 * @param pixels (long) pixels processed by run
+	 * @return (Recording) started recording
+	 */
+	public Recording begin(String key, long pixels) {
+		return new Recording(this, key, pixels);
+	}
+
+	/**
+	 * @param key (String) key of filter or stage
+	 * @return (Stats) measurements of key, null if never recorded
+	 */
+	public synchronized Stats get(String key) {
+		return stats.get(key);
+	}
+
+	/**
+	 * @return (List) measurements of all keys, sorted by key
+	 */
+	public synchronized List<Stats> getAll() {
+		return new ArrayList<>(stats.values());
+	}
+
+	/**
+	 * Removes all measurements.
+	 */
+	public synchronized void clear() {
+		stats.clear();
+	}
+
+	/**
+	 * @return (String) measurements of all keys as JSON array
+	 */
+	public String toJson() {
+
+		StringBuilder json = new StringBuilder("[");
+		List<Stats> all = getAll();
+
+		for (int i = 0; i < all.size(); i++)
+			json.append((i == 0) ? "\n  " : ",\n  ").append(all.get(i).toJson());
+
+		return json.append("\n]\n").toString();
+	}
+
+	/**
+	 * @return (Stats) measurements of key, created if missing
+	 */
+	private synchronized Stats getOrCreate(String key) {
+		return stats.computeIfAbsent(key, Stats::new);
+	}
+
+	/**
+	 * Sums the counters of all live threads, so it is only meaningful while
+	 * nothing else runs, like in the FilterBenchmark.
+	 *
+	 * @return (long) bytes allocated by all live threads so far
+	 */
+	static long allocatedBytes() {
+
+		long sum = 0;
+		for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds()))
+			if (bytes > 0)
+				sum += bytes;
+		return sum;
+	}
+
+	/**
+	 * @return (int) bucket of latency
+	 */
+	private static int bucket(long nanos) {
+
+		if (nanos < (1L << SUB_BUCKET_BITS))
+			return (int) Math.max(0, nanos);
+
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+		return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+	}
+
+	/**
+	 * @return (long) largest latency of bucket
+	 */
+	private static long upperBound(int bucket) {
+
+		if (bucket < (1 << SUB_BUCKET_BITS))
+			return bucket;
+
+		int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		long sub = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+		return ((1L << SUB_BUCKET_BITS | sub) + 1 << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+}
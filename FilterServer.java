@@ -0,0 +1,442 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * FilterServer keeps one JVM running and filters images sent over HTTP, so
+ * filters run warm, compiled code instead of starting cold for each image.
+ *
+ * Every filter of the FilterStorage is served at POST /filter/{name}. The
+ * body is either the image file itself or multipart/form-data with the
+ * parts "image" and optionally "mask". The output is returned as PNG, or
+ * in the format given by the query parameter "format" (bmp, ppm or png).
+ * GET /health answers 200 once the server is ready, 503 before. Requests
+ * are recorded by InstrumentedFilters, GET /metrics returns FilterMetrics 
+ * as JSON.
+ *
+ * Requests are handled by a thread each, virtual threads if the JVM
+ * supports them. Filtering is done by a fixed number of workers, fed by a 
+ * bounded queue. A request takes a permit for a worker or a queue slot
+ * before its body is read and holds it until the output is sent. If none
+ * is left, it is answered with 429 instead of piling up images in memory.
+ * Bodies of more than "image_processing.serverMaxBytes" bytes (default 
+ * 256 M) and images or masks of more than "image_processing.serverMaxPixels"
+ * pixels (default 64 M) by their header are answered with 413, before the
+ * image is decoded.
+ *
+ * Before the server reports ready, every filter is run a few times on a
+ * generated image, so its loops are compiled when the first request comes.
+ */
+public class FilterServer {
+
+	private static final String FILTER_PATH = "/filter/";
+	private static final String HEALTH_PATH = "/health";
+	private static final String METRICS_PATH = "/metrics";
+	private static final int WARMUP_SIZE = 256;
+	private static final Pattern PART_NAME = Pattern.compile(";\\s*name=\"([^\"]*)\"");
+
+	private final HttpServer server;
+	private final ExecutorService handlers;
+	private final ThreadPoolExecutor workers;
+	private final Semaphore permits;
+	private final long maxRequestBytes = 
+			Long.getLong("image_processing.serverMaxBytes", 256L << 20);
+	private final long maxPixels = 
+			Long.getLong("image_processing.serverMaxPixels", 64L << 20);
+	private volatile boolean ready;
+
+	/**
+	 * Creates server with a worker per core and a queue of 16 images, or 
+	 * the values of the system properties "image_processing.serverWorkers" 
+	 * and "image_processing.serverQueue".
+	 *
+	 * @param port (int) port to listen on
+	 * @throws IOException if port can not be bound
+	 */
+	public FilterServer(int port) throws IOException {
+		this(port, Integer.getInteger("image_processing.serverWorkers", 
+				Runtime.getRuntime().availableProcessors()),
+				Integer.getInteger("image_processing.serverQueue", 16));
+	}
+
+	/**
+	 * Creates server.
+	 *
+	 * @param port (int) port to listen on
+	 * @param workerThreads (int) images filtered at the same time
+	 * @param queueCapacity (int) images waiting for a worker at most
+	 * @throws IOException if port can not be bound
+	 */
+	public FilterServer(int port, int workerThreads, int queueCapacity) throws IOException {
+
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.handlers = IoExecutors.newExecutor();
+		this.workers = new ThreadPoolExecutor(Math.max(1, workerThreads), 
+				Math.max(1, workerThreads), 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<>(Math.max(1, queueCapacity)));
+		this.permits = new Semaphore(Math.max(1, workerThreads) + Math.max(1, queueCapacity));
+
+		server.setExecutor(handlers);
+		server.createContext(FILTER_PATH, this::handleFilter);
+		server.createContext(HEALTH_PATH, this::handleHealth);
+		server.createContext(METRICS_PATH, this::handleMetrics);
+	}
+
+	/**
+	 * Starts listening, warms up all filters and reports ready.
+	 */
+	public void start() {
+
+		server.start();
+		warmUp(Integer.getInteger("image_processing.warmupRounds", 3));
+		ready = true;
+
+		System.out.printf("Serving %d filters on port %d%n", 
+				FilterStorage.getInstance().getKeys().size(), getPort());
+	}
+
+	/**
+	 * Stops accepting requests, waits a second for running ones.
+	 */
+	public void stop() {
+		ready = false;
+		server.stop(1);
+		workers.shutdown();
+		handlers.shutdown();
+	}
+
+	/**
+	 * @return (int) port the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return (boolean) true if filters are warmed up
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Runs every filter on a generated image with and without mask.
+	 *
+	 * @param rounds (int) times each filter is run
+	 */
+	private void warmUp(int rounds) {
+
+		int[] pixels = new int[WARMUP_SIZE * WARMUP_SIZE];
+		int[] maskPixels = new int[pixels.length];
+
+		for (int row = 0; row < WARMUP_SIZE; row++) {
+			for (int col = 0; col < WARMUP_SIZE; col++) {
+				int i = row * WARMUP_SIZE + col;
+				pixels[i] = PixelColor.combine(row, col, (row * col) & 0xff);
+				maskPixels[i] = (col < WARMUP_SIZE / 2) ? 0xffffffff : 0xff000000;
+			}
+		}
+
+		BufferedImage image = RasterAccess.wrapWithAlpha(pixels, WARMUP_SIZE, WARMUP_SIZE);
+		BufferedImage mask = RasterAccess.wrapWithAlpha(maskPixels, WARMUP_SIZE, WARMUP_SIZE);
+		FilterStorage filters = FilterStorage.getInstance();
+
+		for (int round = 0; round < rounds; round++) {
+			for (String name : filters.getKeys()) {
+				Filter filter = filters.get(name);
+				DerivedDataCache.getInstance().invalidate(filter.process(image, null));
+				DerivedDataCache.getInstance().invalidate(filter.process(image, mask));
+			}
+		}
+
+		DerivedDataCache.getInstance().invalidate(image);
+		DerivedDataCache.getInstance().invalidate(mask);
+	}
+
+	/**
+	 * Answers whether filters are warmed up.
+	 */
+	private void handleHealth(HttpExchange exchange) throws IOException {
+		if (ready)
+			respond(exchange, 200, "ready");
+		else
+			respond(exchange, 503, "warming up");
+	}
+
+	/**
+	 * Sends metrics of all filters run so far.
+	 */
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		byte[] json = FilterMetrics.getInstance().toJson().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, json.length);
+		exchange.getResponseBody().write(json);
+		exchange.close();
+	}
+
+	/**
+	 * Decodes image and mask of request, filters them on a worker and sends
+	 * the output.
+	 */
+	private void handleFilter(HttpExchange exchange) throws IOException {
+
+		try (exchange) {
+
+			if (!exchange.getRequestMethod().equals("POST")) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				respond(exchange, 405, "Use POST");
+				return;
+			}
+
+			if (!ready) {
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, 503, "Warming up");
+				return;
+			}
+
+			URI uri = exchange.getRequestURI();
+			String name = uri.getPath().substring(FILTER_PATH.length());
+			Filter filter = FilterStorage.getInstance().get(name);
+			String format = getQuery(uri).getOrDefault("format", "png");
+
+			if (filter == null) {
+				respond(exchange, 404, "Filter unknown: " + name);
+				return;
+			}
+			if (!StripWriter.isSupported(format)) {
+				respond(exchange, 400, "Format unknown: " + format);
+				return;
+			}
+
+			if (!permits.tryAcquire()) {
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, 429, "Too many requests");
+				return;
+			}
+
+			try {
+				byte[] body = readBody(exchange.getRequestBody());
+				if (body == null) {
+					respond(exchange, 413, "Request larger than " + maxRequestBytes + " bytes");
+					return;
+				}
+
+				Map<String, byte[]> parts = getParts(
+						exchange.getRequestHeaders().getFirst("Content-Type"), body);
+
+				// a small file can hold a large image, so headers are checked first
+				long pixels = 0;
+				try {
+					for (String part : new String[] { "image", "mask" })
+						if (parts.containsKey(part))
+							pixels = Math.max(pixels, 
+									MappedImageReader.getPixelCount(parts.get(part)));
+				} catch (IOException e) {
+					respond(exchange, 400, "Can not read header of image or mask");
+					return;
+				}
+				if (pixels > maxPixels) {
+					respond(exchange, 413, "Image larger than " + maxPixels + " pixels");
+					return;
+				}
+
+				BufferedImage image, mask;
+				try {
+					image = (parts.containsKey("image"))
+							? MappedImageReader.read(parts.get("image"))
+							: null;
+					mask = (parts.containsKey("mask"))
+							? MappedImageReader.read(parts.get("mask"))
+							: null;
+				} catch (IOException e) {
+					respond(exchange, 400, "Can not decode image or mask: " + e.getMessage());
+					return;
+				} catch (OutOfMemoryError e) {
+					respond(exchange, 413, "Image too large to decode");
+					return;
+				}
+
+				if (image == null || (parts.containsKey("mask") && mask == null)) {
+					respond(exchange, 400, "Can not decode image or mask");
+					return;
+				}
+				if (mask != null && (mask.getWidth() != image.getWidth() 
+						|| mask.getHeight() != image.getHeight())) {
+					respond(exchange, 400, "Mask size differs from image size");
+					return;
+				}
+
+				Filter instrumented = new InstrumentedFilter(name, filter);
+				Future<BufferedImage> task;
+				try {
+					task = workers.submit(() -> instrumented.process(image, mask));
+				} catch (RejectedExecutionException e) {
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					respond(exchange, 429, "Too many requests");
+					return;
+				}
+
+				BufferedImage output;
+				try {
+					output = task.get();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					respond(exchange, 500, "Filter failed: " + e.getCause());
+					return;
+				} finally {
+					DerivedDataCache.getInstance().invalidate(image);
+					DerivedDataCache.getInstance().invalidate(mask);
+				}
+
+				exchange.getResponseHeaders().set("Content-Type", "image/" 
+						+ (format.equals("ppm") ? "x-portable-pixmap" : format));
+				exchange.sendResponseHeaders(200, 0);
+				StripWriter.write(output, format, Channels.newChannel(exchange.getResponseBody()));
+				DerivedDataCache.getInstance().invalidate(output);
+			} finally {
+				permits.release();
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads body up to the maximum request size.
+	 *
+	 * @return (byte[]) body, null if it is too large
+	 */
+	private byte[] readBody(InputStream in) throws IOException {
+		byte[] body = in.readNBytes((int) Math.min(maxRequestBytes + 1, Integer.MAX_VALUE - 8));
+		return (body.length > maxRequestBytes) ? null : body;
+	}
+
+	/**
+	 * Splits multipart/form-data into its parts by name. Any other body is
+	 * the image itself.
+	 *
+	 * @param contentType (String) content type of request, may be null
+	 * @param body (byte[]) body of request
+	 * @return (Map) content of each part by its name
+	 */
+	static Map<String, byte[]> getParts(String contentType, byte[] body) {
+
+		Map<String, byte[]> parts = new HashMap<>();
+
+		if (contentType == null || !contentType.startsWith("multipart/form-data")
+				|| !contentType.contains("boundary=")) {
+			parts.put("image", body);
+			return parts;
+		}
+
+		String boundary = contentType.substring(contentType.indexOf("boundary=") + 9)
+				.replaceAll(";.*$", "").replace("\"", "").trim();
+		byte[] delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		byte[] headerEnd = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+		// first delimiter may start the body without a line break before it
+		int first = indexOf(body, Arrays.copyOfRange(delimiter, 2, delimiter.length), 0);
+		int partStart = (first < 0) ? -1 : first + delimiter.length - 2;
+
+		// "--" after a delimiter ends the body
+		while (partStart >= 0 && partStart + 2 <= body.length
+				&& !(body[partStart] == '-' && body[partStart + 1] == '-')) {
+
+			int contentStart = indexOf(body, headerEnd, partStart);
+			if (contentStart < 0)
+				break;
+			int next = indexOf(body, delimiter, contentStart + headerEnd.length);
+			if (next < 0)
+				break;
+
+			String headers = new String(body, partStart, contentStart - partStart,
+					StandardCharsets.ISO_8859_1);
+			String name = getPartName(headers);
+			if (name != null)
+				parts.put(name, Arrays.copyOfRange(body, contentStart + headerEnd.length, next));
+
+			partStart = next + delimiter.length;
+		}
+		return parts;
+	}
+
+	/**
+	 * @return (String) value of name in Content-Disposition header, null if missing
+	 */
+	private static String getPartName(String headers) {
+		for (String line : headers.split("\r\n")) {
+			if (!line.toLowerCase().startsWith("content-disposition"))
+				continue;
+			Matcher matcher = PART_NAME.matcher(line);
+			return (matcher.find()) ? matcher.group(1) : null;
+		}
+		return null;
+	}
+
+	/**
+	 * @return (int) index of first occurrence of pattern from start on, -1 if none
+	 */
+	private static int indexOf(byte[] data, byte[] pattern, int start) {
+		search:
+		for (int i = Math.max(0, start); i <= data.length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++)
+				if (data[i + j] != pattern[j])
+					continue search;
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return (Map) parameters of query of uri
+	 */
+	private static Map<String, String> getQuery(URI uri) {
+		Map<String, String> query = new HashMap<>();
+		if (uri.getQuery() == null)
+			return query;
+		for (String parameter : uri.getQuery().split("&")) {
+			int split = parameter.indexOf('=');
+			if (split > 0)
+				query.put(parameter.substring(0, split), parameter.substring(split + 1));
+		}
+		return query;
+	}
+
+	/**
+	 * Sends a text response.
+	 */
+	private static void respond(HttpExchange exchange, int status, String message) 
+			throws IOException {
+		byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+		exchange.close();
+	}
+
+}
@@ -31,6 +31,8 @@ public class FilterStorage {
 		filters.put("threshold_128", new ThresholdFilter(128)); 			
 		filters.put("threshold_192", new ThresholdFilter(192)); 
 		filters.put("multithreshold", new MultiThresholdFilter(64, 128, 192));
+		filters.put("threshold_auto", new AutoThresholdFilter());
+		filters.put("multithreshold_auto", new AutoMultiThresholdFilter(3));
 		filters.put("colorreplacement_96", new ColorReplacementFilter(96));	
 		filters.put("colorreplacement_160", new ColorReplacementFilter(160));	
 		filters.put("colorreplacement_255", new ColorReplacementFilter(255));	
@@ -39,9 +41,13 @@ public class FilterStorage {
 		
  		filters.put("blur_3", new BlurFilter(3));				
 		filters.put("blur_5", new BlurFilter(5));
+		filters.put("blur_15", new BlurFilter(15));
 		filters.put("pixel_20", new PixelGraphicFilter(20)); 
 		filters.put("pixel_40", new PixelGraphicFilter(40));
 		filters.put("pixel_60", new PixelGraphicFilter(60));
+		filters.put("gaussian_5", ConvolutionFilter.gaussian(5));
+		filters.put("gaussian_15", ConvolutionFilter.gaussian(15));
+		filters.put("sharpen", ConvolutionFilter.sharpen());
 		
 		// ChainFilter
 		
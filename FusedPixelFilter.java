@@ -0,0 +1,55 @@
+package de.studium.image_processing;
+
+import java.util.List;
+
+/**
+ * FusedPixelFilter applies a run of PixelFilters in a single traversal of
+ * the image by passing each pixel through all of their calculations.
+ */
+class FusedPixelFilter extends PixelFilter {
+
+	private final PixelFilter[] stages;
+	
+	/**
+	 * Creates FusedPixelFilter out of PixelFilters in order of application.
+	 * 
+	 * @param stages (List) PixelFilters to fuse
+	 */
+	FusedPixelFilter(List<PixelFilter> stages) {
+		this.stages = stages.toArray(new PixelFilter[0]);
+	}
+	
+	/**
+	 * Passes color through calculation or LookupTable of every stage. Sets
+	 * alpha after each stage, like reading an intermediate image would.
+	 */
+	@Override
+	protected int calculate(int pixelColor) {
+		
+		for (PixelFilter stage : stages)
+			pixelColor = stage.apply(pixelColor) | 0xff000000;
+		
+		return pixelColor;
+	}
+	
+	/**
+	 * Combines the LookupTable of the first stage with the calculations of 
+	 * all following stages, so the whole run is a single lookup. Only 
+	 * possible if the results of each stage can still be indexed like the 
+	 * first table, see LookupTable.andThen.
+	 */
+	@Override
+	protected LookupTable compile() {
+		
+		LookupTable table = stages[0].getLookupTable();
+		
+		for (int i = 1; i < stages.length && table != null; i++) {
+			PixelFilter stage = stages[i];
+			table = table.andThen(
+					pixelColor -> stage.apply(pixelColor | 0xff000000) | 0xff000000, 
+					stage.getLookupTable());
+		}
+		return table;
+	}
+
+}
@@ -0,0 +1,200 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A histogram counts how many pixels of an image have each 0-255 value of
+ * greyscale (see PixelColor.average) and of every colorband.
+ *
+ * All histograms are computed in a single pass over the image. Tiles of rows
+ * are processed in parallel by the TileExecutor, each of them counting into
+ * its own histograms, which are added to the result when the tile is done.
+ * If a mask is given, only masked pixels are counted, as only those will be
+ * changed by a filter.
+ */
+public class Histogram {
+
+	public static final int BINS = 256;
+
+	private static final int GREY = 0;
+	private static final int RED = 1;
+	private static final int GREEN = 2;
+	private static final int BLUE = 3;
+
+	private final int[][] counts = new int[4][BINS];
+	private long total;
+
+	/**
+	 * Counts values of all pixels of image, or of masked pixels only.
+	 *
+	 * @param image (BufferedImage) image to count
+	 * @param mask (BufferedImage) mask image, null to count all pixels
+	 * @return (Histogram) histogram of image
+	 */
+	public static Histogram of(BufferedImage image, BufferedImage mask) {
+
+		Histogram histogram = new Histogram();
+
+		int width = image.getWidth();
+		int[] pixels = DerivedDataCache.getInstance().getPixels(image);
+		Mask maskBits = Mask.of(mask);
+
+		TileExecutor.getInstance().forEachTile(Workload.PIXEL, width, 
+				image.getHeight(), (fromRow, toRow) -> {
+
+			Histogram local = new Histogram();
+
+			for (int row = fromRow; row < toRow; row++) {
+
+				int rowStart = row * width;
+
+				if (maskBits == null) {
+					local.count(pixels, rowStart, rowStart + width);
+					continue;
+				}
+
+				for (int span = maskBits.firstSpan(row); span < maskBits.endSpan(row); span++)
+					local.count(pixels, rowStart + maskBits.spanStart(span),
+							rowStart + maskBits.spanEnd(span));
+			}
+
+			histogram.add(local);
+		});
+
+		return histogram;
+	}
+
+	/**
+	 * Counts a range of pixels.
+	 */
+	private void count(int[] pixels, int from, int to) {
+
+		int[] grey = counts[GREY];
+		int[] red = counts[RED];
+		int[] green = counts[GREEN];
+		int[] blue = counts[BLUE];
+
+		for (int i = from; i < to; i++) {
+			int pixel = pixels[i];
+			grey[PixelColor.average(pixel)]++;
+			red[PixelColor.red(pixel)]++;
+			green[PixelColor.green(pixel)]++;
+			blue[PixelColor.blue(pixel)]++;
+		}
+		total += to - from;
+	}
+
+	/**
+	 * Adds counts of another histogram.
+	 */
+	private synchronized void add(Histogram other) {
+		for (int channel = 0; channel < counts.length; channel++)
+			for (int value = 0; value < BINS; value++)
+				counts[channel][value] += other.counts[channel][value];
+		total += other.total;
+	}
+
+	/**
+	 * @return (int[]) number of pixels for each 0-255 greyscale value
+	 */
+	public int[] getGreyscale() {
+		return counts[GREY].clone();
+	}
+
+	/**
+	 * @param colorband (ColorBand) colorband to get
+	 * @return (int[]) number of pixels for each 0-255 value of colorband
+	 */
+	public int[] getColorBand(ColorBand colorband) {
+		switch(colorband) {
+			case RED:
+				return counts[RED].clone();
+			case GREEN:
+				return counts[GREEN].clone();
+			case BLUE:
+			default:
+				return counts[BLUE].clone();
+		}
+	}
+
+	/**
+	 * @return (long) number of counted pixels
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Calculates thresholds separating greyscale values into classes, so that
+	 * the variance between classes is maximal (Otsu's method). One threshold
+	 * separates two classes, two thresholds three classes etc.
+	 *
+	 * Maximizing the variance between classes is the same as maximizing the
+	 * sum of sum * sum / count over all classes. The best split of the values
+	 * below each threshold is calculated once for each number of classes,
+	 * so the search takes levels * 256 * 256 steps.
+	 *
+	 * @param levels (int) number of thresholds, at least 1
+	 * @return (int[]) ascending thresholds, a value belongs to the class above
+	 * 		a threshold if it is at least the threshold
+	 */
+	public int[] getOtsuThresholds(int levels) {
+
+		int[] grey = counts[GREY];
+		levels = Math.max(1, Math.min(levels, BINS - 1));
+
+		// count and sum of values below each index
+		long[] countBelow = new long[BINS + 1];
+		long[] sumBelow = new long[BINS + 1];
+		for (int value = 0; value < BINS; value++) {
+			countBelow[value + 1] = countBelow[value] + grey[value];
+			sumBelow[value + 1] = sumBelow[value] + (long) grey[value] * value;
+		}
+
+		// best[classes][end]: best score of values below end split into classes
+		double[][] best = new double[levels + 1][BINS + 1];
+		int[][] split = new int[levels + 1][BINS + 1];
+
+		for (int end = 1; end <= BINS; end++)
+			best[0][end] = score(countBelow, sumBelow, 0, end);
+
+		for (int classes = 1; classes <= levels; classes++) {
+			for (int end = classes + 1; end <= BINS; end++) {
+
+				best[classes][end] = -1;
+
+				for (int start = classes; start < end; start++) {
+					double value = best[classes - 1][start]
+							+ score(countBelow, sumBelow, start, end);
+					if (value > best[classes][end]) {
+						best[classes][end] = value;
+						split[classes][end] = start;
+					}
+				}
+			}
+		}
+
+		int[] thresholds = new int[levels];
+		int end = BINS;
+		for (int classes = levels; classes > 0; classes--) {
+			end = split[classes][end];
+			thresholds[classes - 1] = end;
+		}
+		return thresholds;
+	}
+
+	/**
+	 * @return (double) sum * sum / count of values from start to end, 0 if empty
+	 */
+	private static double score(long[] countBelow, long[] sumBelow, int start, int end) {
+
+		long count = countBelow[end] - countBelow[start];
+
+		if (count == 0)
+			return 0;
+
+		double sum = sumBelow[end] - sumBelow[start];
+		return sum * sum / count;
+	}
+
+}
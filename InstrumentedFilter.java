@@ -0,0 +1,130 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * InstrumentedFilter wraps a filter and records each run in FilterMetrics
+ * under the key of the filter.
+ *
+ * Unpacking is the time to get the pixels of image and mask, which the 
+ * filter then finds in the DerivedDataCache. Computing is the run of the 
+ * filter and packing the time to get the pixels of its output in the 
+ * layout writers use. ChainFilters mark the phases themselves and record 
+ * each of their stages under key/index:class.
+ *
+ * As some classes check the type of a filter, like the StripProcessor 
+ * does for the overlap of strips, filters should only be wrapped where
+ * they are processed as a whole.
+ */
+public class InstrumentedFilter implements Filter {
+
+	private final String key;
+	private final Filter filter;
+	private final FilterMetrics metrics;
+
+	/**
+	 * Creates InstrumentedFilter recording in the shared FilterMetrics.
+	 *
+	 * @param key (String) key to record runs under
+	 * @param filter (Filter) filter to wrap
+	 */
+	public InstrumentedFilter(String key, Filter filter) {
+		this(key, filter, FilterMetrics.getInstance());
+	}
+
+	/**
+	 * Creates InstrumentedFilter.
+	 *
+	 * @param key (String) key to record runs under
+	 * @param filter (Filter) filter to wrap
+	 * @param metrics (FilterMetrics) metrics to record in
+	 */
+	public InstrumentedFilter(String key, Filter filter, FilterMetrics metrics) {
+		this.key = key;
+		this.filter = filter;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Processes image and mask by the wrapped filter and records the run.
+	 */
+	@Override
+	public BufferedImage process(BufferedImage... input) {
+
+		BufferedImage image = (input.length > 0) ? input[0] : null;
+		BufferedImage mask = (input.length > 1) ? input[1] : null;
+
+		if (image == null)	// nothing to process
+			return null;
+
+		FilterMetrics.Recording recording = 
+				metrics.begin(key, (long) image.getWidth() * image.getHeight());
+		BufferedImage output;
+
+		if (filter instanceof ChainFilter) {
+			output = ((ChainFilter) filter).process(image, mask, recording);
+		} else {
+			DerivedDataCache.getInstance().getPixels(image);
+			if (mask != null)
+				DerivedDataCache.getInstance().getMask(mask);
+			recording.unpacked();
+
+			output = filter.process(image, mask);
+			recording.computed();
+		}
+
+		if (output != null)
+			RasterAccess.getPixels(output);
+		recording.end();
+
+		return output;
+	}
+
+	@Override
+	public boolean isPlanar() {
+		return filter.isPlanar();
+	}
+
+	/**
+	 * Processes planar image by the wrapped filter and records the run as
+	 * computing only.
+	 */
+	@Override
+	public PlanarImage process(PlanarImage image, BufferedImage mask) {
+
+		if (image == null)	// nothing to process
+			return null;
+
+		FilterMetrics.Recording recording = 
+				metrics.begin(key, (long) image.getWidth() * image.getHeight());
+		PlanarImage output = filter.process(image, mask);
+		recording.computed();
+		recording.end();
+
+		return output;
+	}
+
+	/**
+	 * @return (String) fingerprint of wrapped filter, as instrumenting does
+	 * 		not change the output
+	 */
+	@Override
+	public String getFingerprint() {
+		return filter.getFingerprint();
+	}
+
+	/**
+	 * @return (Filter) wrapped filter
+	 */
+	public Filter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * @return (String) key runs are recorded under
+	 */
+	public String getKey() {
+		return key;
+	}
+
+}
@@ -0,0 +1,39 @@
+package de.studium.image_processing;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * IoExecutors creates executors for tasks that mostly wait for I/O. Uses a
+ * virtual thread for each task if the JVM supports them, else a cached pool
+ * of daemon threads.
+ */
+final class IoExecutors {
+	
+	/**
+	 * Only static methods, no instances.
+	 */
+	private IoExecutors() {
+	}
+	
+	/**
+	 * @return (ExecutorService) executor starting a thread per task
+	 */
+	static ExecutorService newExecutor() {
+		
+		try {
+			Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) virtual.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			// JVM without virtual threads
+		}
+		
+		return Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+}
@@ -0,0 +1,225 @@
+package de.studium.image_processing;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A LookupTable holds the precomputed results of a PixelFilter calculation,
+ * so calculating the color of a pixel is reduced to loading table entries.
+ * 
+ * Tables are either indexed by the channel sum (red + green + blue, 0-765)
+ * of a pixel or by each of its colorbands (0-255). Both kinds also hold the
+ * values of each colorband as bytes, so planes of a PlanarImage are looked 
+ * up without packing colors.
+ */
+public abstract class LookupTable {
+
+	private static final int MAX_CHANNEL_SUM = 3 * 255;
+	
+	/**
+	 * Looks up resulting color for given color.
+	 * 
+	 * @param pixelColor (int) representation of color
+	 * @return (int) representation of resulting color
+	 */
+	public abstract int lookup(int pixelColor);
+	
+	/**
+	 * Looks up resulting colors for a range of planes.
+	 * 
+	 * @param image (PlanarImage) image to read
+	 * @param output (PlanarImage) image to fill
+	 * @param from (int) first index of range
+	 * @param to (int) index after the last one of range
+	 */
+	public abstract void lookupPlanes(PlanarImage image, PlanarImage output, 
+			int from, int to);
+	
+	/**
+	 * Creates table holding the results of this table passed through another
+	 * calculation, so both are looked up at once.
+	 * 
+	 * @param next (IntUnaryOperator) calculation applied to looked up colors
+	 * @param nextTable (LookupTable) table of calculation, null if not compiled
+	 * @return (LookupTable) combined table, null if combined results can not 
+	 * 		be indexed like this table
+	 */
+	public abstract LookupTable andThen(IntUnaryOperator next, LookupTable nextTable);
+	
+	/**
+	 * Creates table indexed by channel sum.
+	 * 
+	 * @param calculation (IntUnaryOperator) calculates color out of channel sum
+	 * @return (LookupTable) table holding color for each channel sum
+	 */
+	public static LookupTable fromChannelSum(IntUnaryOperator calculation) {
+		
+		int[] table = new int[MAX_CHANNEL_SUM + 1];
+		
+		for (int sum = 0; sum <= MAX_CHANNEL_SUM; sum++)
+			table[sum] = calculation.applyAsInt(sum);
+		
+		return new ChannelSumTable(table);
+	}
+	
+	/**
+	 * Creates table indexed by colorbands. Each colorband of the resulting
+	 * color only depends on the same colorband of the given color.
+	 * 
+	 * @param red (IntUnaryOperator) calculates red value out of red value
+	 * @param green (IntUnaryOperator) calculates green value out of green value
+	 * @param blue (IntUnaryOperator) calculates blue value out of blue value
+	 * @return (LookupTable) table holding results for each colorband value
+	 */
+	public static LookupTable fromBands(IntUnaryOperator red, 
+			IntUnaryOperator green, IntUnaryOperator blue) {
+		
+		int[] redTable = new int[256];
+		int[] greenTable = new int[256];
+		int[] blueTable = new int[256];
+		
+		// store values already shifted to their position in color
+		for (int value = 0; value < 256; value++) {
+			redTable[value] = (red.applyAsInt(value) & 0xff) << 16;
+			greenTable[value] = (green.applyAsInt(value) & 0xff) << 8;
+			blueTable[value] = blue.applyAsInt(value) & 0xff;
+		}
+		
+		return new BandTable(redTable, greenTable, blueTable);
+	}
+	
+	/**
+	 * Table indexed by sum of RGB values.
+	 */
+	private static class ChannelSumTable extends LookupTable {
+		
+		private final int[] table;
+		private final byte[] red;
+		private final byte[] green;
+		private final byte[] blue;
+		
+		ChannelSumTable(int[] table) {
+			this.table = table;
+			this.red = new byte[table.length];
+			this.green = new byte[table.length];
+			this.blue = new byte[table.length];
+			
+			for (int sum = 0; sum < table.length; sum++) {
+				red[sum] = (byte) (table[sum] >> 16);
+				green[sum] = (byte) (table[sum] >> 8);
+				blue[sum] = (byte) table[sum];
+			}
+		}
+		
+		@Override
+		public int lookup(int pixelColor) {
+			return table[((pixelColor >> 16) & 0xff) 
+			             + ((pixelColor >> 8) & 0xff) 
+			             + (pixelColor & 0xff)];
+		}
+		
+		@Override
+		public void lookupPlanes(PlanarImage image, PlanarImage output, 
+				int from, int to) {
+			
+			byte[] inRed = image.getRed(), inGreen = image.getGreen(), 
+					inBlue = image.getBlue();
+			byte[] outRed = output.getRed(), outGreen = output.getGreen(), 
+					outBlue = output.getBlue();
+			
+			for (int i = from; i < to; i++) {
+				int sum = (inRed[i] & 0xff) + (inGreen[i] & 0xff) + (inBlue[i] & 0xff);
+				outRed[i] = red[sum];
+				outGreen[i] = green[sum];
+				outBlue[i] = blue[sum];
+			}
+		}
+		
+		/**
+		 * Results only depend on the channel sum, whatever calculation follows.
+		 */
+		@Override
+		public LookupTable andThen(IntUnaryOperator next, LookupTable nextTable) {
+			
+			int[] combined = new int[table.length];
+			for (int sum = 0; sum < table.length; sum++)
+				combined[sum] = next.applyAsInt(table[sum]);
+			
+			return new ChannelSumTable(combined);
+		}
+	}
+	
+	/**
+	 * Table indexed by each RGB value.
+	 */
+	private static class BandTable extends LookupTable {
+		
+		private final int[] red;
+		private final int[] green;
+		private final int[] blue;
+		private final byte[] redValues = new byte[256];
+		private final byte[] greenValues = new byte[256];
+		private final byte[] blueValues = new byte[256];
+		
+		BandTable(int[] red, int[] green, int[] blue) {
+			this.red = red;
+			this.green = green;
+			this.blue = blue;
+			
+			for (int value = 0; value < 256; value++) {
+				redValues[value] = (byte) (red[value] >> 16);
+				greenValues[value] = (byte) (green[value] >> 8);
+				blueValues[value] = (byte) blue[value];
+			}
+		}
+		
+		@Override
+		public int lookup(int pixelColor) {
+			return 0xff000000 
+					| red[(pixelColor >> 16) & 0xff] 
+					| green[(pixelColor >> 8) & 0xff] 
+					| blue[pixelColor & 0xff];
+		}
+		
+		@Override
+		public void lookupPlanes(PlanarImage image, PlanarImage output, 
+				int from, int to) {
+			lookupPlane(image.getRed(), output.getRed(), redValues, from, to);
+			lookupPlane(image.getGreen(), output.getGreen(), greenValues, from, to);
+			lookupPlane(image.getBlue(), output.getBlue(), blueValues, from, to);
+		}
+		
+		/**
+		 * Colorbands stay independent only if the next calculation is a table 
+		 * indexed by colorbands, too.
+		 */
+		@Override
+		public LookupTable andThen(IntUnaryOperator next, LookupTable nextTable) {
+			
+			if (!(nextTable instanceof BandTable))
+				return null;
+			
+			BandTable other = (BandTable) nextTable;
+			int[] redTable = new int[256];
+			int[] greenTable = new int[256];
+			int[] blueTable = new int[256];
+			
+			for (int value = 0; value < 256; value++) {
+				redTable[value] = other.red[red[value] >> 16];
+				greenTable[value] = other.green[green[value] >> 8];
+				blueTable[value] = other.blue[blue[value]];
+			}
+			
+			return new BandTable(redTable, greenTable, blueTable);
+		}
+		
+		/**
+		 * Looks up a range of a plane.
+		 */
+		private static void lookupPlane(byte[] plane, byte[] outPlane, byte[] values, 
+				int from, int to) {
+			for (int i = from; i < to; i++)
+				outPlane[i] = values[plane[i] & 0xff];
+		}
+	}
+	
+}
@@ -3,9 +3,16 @@ package de.studium.image_processing;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-
-import javax.imageio.ImageIO;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Class containing the main mathod
@@ -13,96 +20,373 @@ import javax.imageio.ImageIO;
 public class Main {
 	
 	private static final String MASK_TAG = "-m";
-
+	private static final String STREAM_TAG = "-s";
+	private static final String BATCH_TAG = "-b";
+	private static final String CACHE_TAG = "-c";
+	private static final String FORMAT_TAG = "-f";
+	private static final String SERVER_TAG = "-p";
+	private static final String METRICS_TAG = "-j";
+	private static final long DEFAULT_CACHE_BYTES = 1L << 30;
+	
 	public static void main(String[] args) throws Exception {
 		
 		String filtername;
 		String pathToImage;
-		String tag;
-		String pathToMask;
+		String pathToMask = null;
 		String outputPath;
+		String pathToCache = null;
+		String format = "bmp";
+		int stripRows = 0;
+		int port = -1;
+		String pathToMetrics = null;
+		boolean batch = false;
 		
-		BufferedImage image = null;
-		BufferedImage mask = null;
-		
-		FilterStorage filters = FilterStorage.getInstance();
+		ArrayList<String> arguments = new ArrayList<>();
 		
-		if (args.length == 3) {
+		for (int i = 0; i < args.length; i++) {
 			
-			filtername = args[0];
-			pathToImage = args[1];
-			outputPath = args[2];
+			String tag = args[i];
 			
-			try {
-				image = ImageIO.read(new File(pathToImage));
-			} catch(IOException e) {
-				e.printStackTrace();
+			if (!tag.startsWith("-")) {
+				arguments.add(tag);
+				continue;
 			}
 			
-		}
-		
-		else if (args.length == 5) {
-			filtername = args[0];
-			pathToImage = args[1];
-			tag = args[2];
+			if (tag.equals(BATCH_TAG)) {
+				batch = true;
+				continue;
+			}
 			
-			if (!tag.equals(MASK_TAG)) {
-				throw new Error("Invalid tag permitted!");
+			if (i + 1 == args.length) {
+				throw new Exception("Missing value for tag " + tag + "!");
 			}
-			pathToMask = args[3];
-			outputPath = args[4];
 			
-			try {
-				image = ImageIO.read(new File(pathToImage));
-				mask = ImageIO.read(new File(pathToMask));
-			} catch(IOException e) {
-				e.printStackTrace();
+			if (tag.equals(MASK_TAG)) {
+				pathToMask = args[++i];
+			} else if (tag.equals(STREAM_TAG)) {
+				stripRows = Integer.parseInt(args[++i]);
+			} else if (tag.equals(CACHE_TAG)) {
+				pathToCache = args[++i];
+			} else if (tag.equals(FORMAT_TAG)) {
+				format = args[++i];
+			} else if (tag.equals(SERVER_TAG)) {
+				port = Integer.parseInt(args[++i]);
+			} else if (tag.equals(METRICS_TAG)) {
+				pathToMetrics = args[++i];
+			} else {
+				throw new Error("Invalid tag permitted!");
 			}
 		}
 		
-		else {
+		if (port >= 0) {
+			serve(port);
+			return;
+		}
+		
+		if (!StripWriter.isSupported(format)) {
+			throw new Exception("Format unknown!");
+		}
+		
+		if (arguments.size() != 3) {
 			throw new Exception("Invalid number of arguments provided. "
-					+ "Must be either 3 or 5!");
+					+ "Must be filtername, image and output path, "
+					+ "optionally followed by tags!");
 		}
-	
-		if (filtername.equals("test")) {
-
-			ArrayList<String> nameList = filters.getKeys();
-			ArrayList<Filter> filterList = filters.getValues();
-			
-			for (int i = 0; i < filterList.size(); i++) {
-				
-				Filter filter = filterList.get(i);
-				String name = nameList.get(i);
-				
-				System.out.printf("Performing %s ... ", name);
-				
-				BufferedImage output = filter.process(image, mask);
+		
+		filtername = arguments.get(0);
+		pathToImage = arguments.get(1);
+		outputPath = arguments.get(2);
+		
+		boolean instrument = pathToMetrics != null;
+		
+		if (batch) {
+			batch(filtername, pathToImage, pathToMask, outputPath, format, instrument);
+			writeMetrics(pathToMetrics);
+			return;
+		}
+		
+		if (stripRows > 0) {
+			if (instrument)
+				System.out.println("Metrics are not recorded when streaming.");
+			stream(filtername, pathToImage, pathToMask, outputPath, stripRows, format);
+			return;
+		}
+		
+		FilterStorage filters = FilterStorage.getInstance();
+		boolean test = filtername.equals("test");
+		
+		if (!test && filters.get(filtername) == null) {
+			throw new Exception("Filter unknown!");
+		}
+		
+		List<String> toPerform = (test) 
+				? filters.getKeys() 
+				: new ArrayList<>(List.of(filtername));
+		
+		ResultCache cache = null;
+		Map<String, String> cacheKeys = new HashMap<>();
+		
+		if (pathToCache != null) {
+			cache = new ResultCache(Paths.get(pathToCache), 
+					Long.getLong("image_processing.resultCacheBytes", DEFAULT_CACHE_BYTES));
+			toPerform = restore(cache, cacheKeys, toPerform, pathToImage, pathToMask, 
+					outputPath, format, test);
+		}
+		
+		List<String> written = (toPerform.isEmpty())
+				? toPerform
+				: perform(filtername, toPerform, pathToImage, pathToMask, outputPath, 
+						format, test, instrument);
+		
+		if (cache != null) {
+			// outputs that failed are not stored, a stale file may be at their path
+			for (String name : written) {
 				try {
-					ImageIO.write(output, "bmp", new File(outputPath + name + ".bmp"));
-					System.out.println("Done!");
-				} catch (Exception e) {
+					cache.store(cacheKeys.get(name), 
+							Paths.get(getOutputPath(outputPath, name, format, test)));
+				} catch (IOException e) {
 					e.printStackTrace();
 				}
-				
 			}
+			System.out.println(cache.getReport());
+		}
+		
+		writeMetrics(pathToMetrics);
+	}
+	
+	/**
+	 * Decodes image and mask and performs filters on them.
+	 * 
+	 * @return (List) names of filters whose output has been written
+	 */
+	private static List<String> perform(String filtername, List<String> toPerform, 
+			String pathToImage, String pathToMask, String outputPath, String format,
+			boolean test, boolean instrument) {
+		
+		BufferedImage image = null;
+		BufferedImage mask = null;
+		List<String> written = new ArrayList<>();
+		
+		try {
+			image = MappedImageReader.read(new File(pathToImage));
+			if (pathToMask != null)
+				mask = MappedImageReader.read(new File(pathToMask));
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		
+		if (image == null) {
+			
+			System.out.println("Can not decode " + pathToImage);
+			
+		} else if (test) {
+			
+			written = test(image, mask, outputPath, format, toPerform, instrument);
 			
 		} else {
 			
-			Filter toApply = filters.get(filtername);
+			Filter toApply = getFilter(filtername, instrument);
 			
-			if (toApply == null) {
-				throw new Exception("Filter unknown!");		
-			}
 			System.out.printf("Perfroming %s ... ", filtername);
 			BufferedImage output = toApply.process(image, mask);
 			System.out.println("Done!");
 			try {
-				ImageIO.write(output, "bmp", new File(outputPath));
+				StripWriter.write(output, format, new File(outputPath));
+				written.add(filtername);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
+			DerivedDataCache.getInstance().invalidate(output);
 		}
 		
+		DerivedDataCache.getInstance().invalidate(image);
+		DerivedDataCache.getInstance().invalidate(mask);
+		
+		return written;
+	}
+	
+	/**
+	 * Copies cached outputs of filters to their output path.
+	 * 
+	 * @return (List) names of filters without cached output
+	 */
+	private static List<String> restore(ResultCache cache, Map<String, String> cacheKeys,
+			List<String> names, String pathToImage, String pathToMask, String outputPath,
+			String format, boolean test) throws IOException {
+		
+		FilterStorage filters = FilterStorage.getInstance();
+		Path image = Paths.get(pathToImage);
+		Path mask = (pathToMask != null) ? Paths.get(pathToMask) : null;
+		List<String> missing = new ArrayList<>();
+		
+		for (String name : names) {
+			
+			String key = cache.getKey(image, mask, filters.get(name), format);
+			cacheKeys.put(name, key);
+			
+			if (cache.restore(key, Paths.get(getOutputPath(outputPath, name, format, test))))
+				System.out.printf("%s ... Cached!%n", name);
+			else
+				missing.add(name);
+		}
+		return missing;
+	}
+	
+	/**
+	 * @return (String) output path of a filter, in test mode outputPath + 
+	 * 		name + "." + format
+	 */
+	private static String getOutputPath(String outputPath, String name, String format,
+			boolean test) {
+		return (test) ? outputPath + name + "." + format : outputPath;
+	}
+	
+	/**
+	 * Performs filters of given names concurrently on the same image. Image 
+	 * and mask are unpacked once, so all filters read the same arrays. Filters
+	 * are merged into a FilterGraph, so a filter that starts several chains 
+	 * is performed once. Each output is written to outputPath + name + "." + 
+	 * format as soon as it is done, while the other filters are still running.
+	 * 
+	 * @return (List) names of filters whose output has been written
+	 */
+	private static List<String> test(BufferedImage image, BufferedImage mask, 
+			String outputPath, String format, List<String> nameList, boolean instrument) {
+		
+		FilterGraph graph = new FilterGraph();
+		for (String name : nameList)
+			graph.add(name, FilterStorage.getInstance().get(name));
+		if (instrument)
+			graph.setMetrics(FilterMetrics.getInstance());
+		
+		// unpack once, filters access the arrays of the direct images
+		BufferedImage sharedImage = RasterAccess.toDirect(image);
+		BufferedImage sharedMask = RasterAccess.toDirect(mask);
+		RasterAccess.getPixels(sharedImage);
+		if (sharedMask != null)
+			RasterAccess.getPixels(sharedMask);
+		
+		int threads = Math.min(nameList.size(), 
+				Runtime.getRuntime().availableProcessors());
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		ExecutorService writers = IoExecutors.newExecutor();
+		
+		System.out.printf("Performing %d filters in %d steps ...%n", nameList.size(),
+				graph.getStepCount());
+		
+		List<String> written = Collections.synchronizedList(new ArrayList<>());
+		
+		Map<String, Throwable> failures = graph.process(sharedImage, sharedMask, 
+				workers, writers, (name, output) -> {
+			StripWriter.write(output, format, 
+					new File(getOutputPath(outputPath, name, format, true)));
+			written.add(name);
+			System.out.printf("%s ... Done!%n", name);
+		});
+		
+		for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+			System.out.printf("%s ... Failed!%n", failure.getKey());
+			failure.getValue().printStackTrace();
+		}
+		
+		workers.shutdown();
+		writers.shutdown();
+		DerivedDataCache.getInstance().invalidate(sharedImage);
+		DerivedDataCache.getInstance().invalidate(sharedMask);
+		
+		return written;
+	}
+	
+	/**
+	 * Filters image strip by strip without loading it completely. Writes
+	 * output of each filter to outputPath + name + "." + format in test mode.
+	 */
+	private static void stream(String filtername, String pathToImage,
+			String pathToMask, String outputPath, int stripRows, String format) 
+			throws Exception {
+		
+		FilterStorage filters = FilterStorage.getInstance();
+		StripProcessor processor = new StripProcessor(stripRows, format);
+		File image = new File(pathToImage);
+		File mask = (pathToMask != null) ? new File(pathToMask) : null;
+		
+		if (filtername.equals("test")) {
+			
+			for (String name : filters.getKeys()) {
+				System.out.printf("Streaming %s ... ", name);
+				processor.process(filters.get(name), image, mask,
+						new File(outputPath + name + "." + format));
+				System.out.println("Done!");
+			}
+			
+		} else {
+			
+			Filter toApply = filters.get(filtername);
+			
+			if (toApply == null) {
+				throw new Exception("Filter unknown!");
+			}
+			System.out.printf("Streaming %s ... ", filtername);
+			processor.process(toApply, image, mask, new File(outputPath));
+			System.out.println("Done!");
+		}
+	}
+	
+	/**
+	 * Filters all images of a directory or matching a glob pattern and writes
+	 * them into output directory.
+	 */
+	private static void batch(String filtername, String imagesToRead,
+			String pathToMask, String outputPath, String format, boolean instrument) 
+			throws Exception {
+		
+		Filter toApply = getFilter(filtername, instrument);
+		
+		if (toApply == null) {
+			throw new Exception("Filter unknown!");
+		}
+		
+		List<Path> inputs = BatchProcessor.listInputs(imagesToRead);
+		BufferedImage mask = (pathToMask != null) 
+				? MappedImageReader.read(new File(pathToMask)) 
+				: null;
+		
+		System.out.printf("Performing %s on %d images ...%n", filtername, inputs.size());
+		BatchProcessor processor = new BatchProcessor(toApply);
+		processor.setFormat(format);
+		processor.process(inputs, mask, Paths.get(outputPath));
+	}
+	
+	/**
+	 * @return (Filter) filter of name, wrapped by an InstrumentedFilter if 
+	 * 		instrument is set, null if unknown
+	 */
+	private static Filter getFilter(String name, boolean instrument) {
+		
+		Filter filter = FilterStorage.getInstance().get(name);
+		
+		return (instrument && filter != null) ? new InstrumentedFilter(name, filter) : filter;
+	}
+	
+	/**
+	 * Writes metrics of instrumented filters as JSON, if a path is given.
+	 */
+	private static void writeMetrics(String pathToMetrics) throws IOException {
+		
+		if (pathToMetrics == null)
+			return;
+		
+		Files.writeString(Paths.get(pathToMetrics), FilterMetrics.getInstance().toJson());
+		System.out.printf("Metrics written to %s%n", pathToMetrics);
+	}
+	
+	/**
+	 * Serves all filters over HTTP until the JVM is stopped.
+	 */
+	private static void serve(int port) throws IOException {
+		
+		FilterServer server = new FilterServer(port);
+		Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+		server.start();
 	}
 }
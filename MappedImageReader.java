@@ -0,0 +1,410 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * MappedImageReader decodes uncompressed BMP and binary PPM/PGM files. The
+ * file is mapped into memory and its rows are decoded in parallel by the
+ * TileExecutor straight into the int[] of a direct image, so filters use 
+ * its array without converting it again.
+ *
+ * Supported are BMP files with 1, 4, 8, 24 or 32 bits per pixel without
+ * compression and PPM (P6) and PGM (P5) files. All other files are read
+ * by ImageIO. Files already in memory, like uploads, are decoded the same 
+ * way from their bytes.
+ *
+ * Images of more than "image_processing.maxPixels" pixels (default 256 M)
+ * are rejected by their header, before any pixel is allocated.
+ */
+public final class MappedImageReader {
+
+	private static final int ALPHA_MASK = 0xff000000;
+	private static final int BI_RGB = 0;
+	private static final int INFO_HEADER_SIZE = 40;
+	private static final long MAX_PIXELS = Math.min(Integer.MAX_VALUE - 8, 
+			Long.getLong("image_processing.maxPixels", 1L << 28));
+
+	/**
+	 * Only static methods, no instances.
+	 */
+	private MappedImageReader() {
+	}
+
+	/**
+	 * Decodes image file.
+	 *
+	 * @param file (File) image file
+	 * @return (BufferedImage) decoded image, null if no reader can decode it
+	 * @throws IOException if file can not be read or image is too large
+	 */
+	public static BufferedImage read(File file) throws IOException {
+
+		if (!file.canRead())
+			throw new IIOException("Can't read input file!");
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+			long size = channel.size();
+
+			if (size <= Integer.MAX_VALUE) {
+
+				BufferedImage image = decode(
+						channel.map(FileChannel.MapMode.READ_ONLY, 0, size), file.toString());
+
+				if (image != null)
+					return image;
+			}
+		}
+
+		return readImageIO(ImageIO.createImageInputStream(file), file.toString());
+	}
+
+	/**
+	 * Decodes image from bytes of a file.
+	 *
+	 * @param data (byte[]) content of image file
+	 * @return (BufferedImage) decoded image, null if no reader can decode it
+	 * @throws IOException if data is invalid or image is too large
+	 */
+	public static BufferedImage read(byte[] data) throws IOException {
+
+		BufferedImage image = decode(ByteBuffer.wrap(data), "image");
+
+		return (image != null) ? image 
+				: readImageIO(ImageIO.createImageInputStream(
+						new ByteArrayInputStream(data)), "image");
+	}
+
+	/**
+	 * Reads the size of an image from the header of its file, without
+	 * decoding any pixel, so callers can reject large images before they
+	 * are allocated.
+	 *
+	 * @param data (byte[]) content of image file
+	 * @return (long) number of pixels of image, -1 if no reader can decode it
+	 * @throws IOException if header can not be read
+	 */
+	public static long getPixelCount(byte[] data) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+
+		if (data.length >= 14 + INFO_HEADER_SIZE && data[0] == 'B' && data[1] == 'M')
+			return Math.abs((long) buffer.getInt(18)) * Math.abs((long) buffer.getInt(22));
+
+		if (data.length >= 2 && data[0] == 'P' && (data[1] == '5' || data[1] == '6')) {
+			int[] header = readPnmHeader(buffer);
+			return (header != null) ? (long) header[0] * header[1] : -1;
+		}
+
+		ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+
+		if (input == null)
+			return -1;
+
+		try (input) {
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext())
+				return -1;
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				return (long) reader.getWidth(0) * reader.getHeight(0);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Decodes image by the first ImageIO reader for it, after checking the
+	 * size in its header. Closes the stream.
+	 *
+	 * @param input (ImageInputStream) stream of image file, may be null
+	 * @param source (String) name of image for messages
+	 * @return (BufferedImage) decoded image, null if no reader can decode it
+	 * @throws IOException if image can not be read or is too large
+	 */
+	private static BufferedImage readImageIO(ImageInputStream input, String source) 
+			throws IOException {
+
+		if (input == null)
+			return null;
+
+		try (input) {
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext())
+				return null;
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				checkSize(reader.getWidth(0), reader.getHeight(0), source);
+				return reader.read(0);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * @throws IOException if image has more pixels than allowed
+	 */
+	private static void checkSize(long width, long height, String source) 
+			throws IOException {
+		if (width * height > MAX_PIXELS)
+			throw new IOException(source + " has " + width + " x " + height 
+					+ " pixels, more than the maximum of " + MAX_PIXELS + "!");
+	}
+
+	/**
+	 * Decodes BMP, PPM or PGM data.
+	 *
+	 * @return (BufferedImage) decoded image, null if format is not supported
+	 */
+	private static BufferedImage decode(ByteBuffer buffer, String source) 
+			throws IOException {
+
+		if (buffer.limit() < 2)
+			return null;
+
+		if (buffer.get(0) == 'B' && buffer.get(1) == 'M')
+			return readBmp(buffer, source);
+		if (buffer.get(0) == 'P' && (buffer.get(1) == '5' || buffer.get(1) == '6'))
+			return readPnm(buffer, source);
+
+		return null;
+	}
+
+	/**
+	 * Decodes BMP file.
+	 *
+	 * @return (BufferedImage) decoded image, null if format is not supported
+	 * @throws IOException if image is too large
+	 */
+	private static BufferedImage readBmp(ByteBuffer buffer, String source) 
+			throws IOException {
+
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (buffer.limit() < 14 + INFO_HEADER_SIZE)
+			return null;
+
+		int dataOffset = buffer.getInt(10);
+		int headerSize = buffer.getInt(14);
+		int width = buffer.getInt(18);
+		int height = buffer.getInt(22);
+		int bits = buffer.getShort(28);
+		int compression = buffer.getInt(30);
+		int colorsUsed = buffer.getInt(46);
+
+		// rows are stored bottom to top unless height is negative
+		boolean topDown = height < 0;
+		height = Math.abs(height);
+
+		if (headerSize < INFO_HEADER_SIZE || compression != BI_RGB || width <= 0 
+				|| height <= 0)
+			return null;
+		if (bits != 1 && bits != 4 && bits != 8 && bits != 24 && bits != 32)
+			return null;
+		checkSize(width, height, source);
+
+		// rows are padded to multiples of 4 bytes
+		int stride = (int) (((long) width * bits + 31) / 32 * 4);
+		if (dataOffset < 0 || (long) dataOffset + (long) stride * height > buffer.limit())
+			return null;
+
+		int[] palette = null;
+
+		if (bits <= 8) {
+
+			int colors = (colorsUsed > 0 && colorsUsed < (1 << bits)) ? colorsUsed : 1 << bits;
+			int paletteOffset = 14 + headerSize;
+			palette = new int[1 << bits];
+			// indices beyond the stored colors are opaque black
+			Arrays.fill(palette, ALPHA_MASK);
+
+			// palette stores blue, green, red and an unused byte
+			for (int i = 0; i < colors && paletteOffset + 4 * i + 3 <= buffer.limit(); i++)
+				palette[i] = ALPHA_MASK | (buffer.getInt(paletteOffset + 4 * i) & 0xffffff);
+		}
+
+		int finalHeight = height;
+		int[] colors = palette;
+		int[] pixels = new int[width * height];
+
+		TileExecutor.getInstance().forEachTile(Workload.PIXEL, width, height, 
+				(fromRow, toRow) -> {
+
+			byte[] row = new byte[stride];
+
+			for (int r = fromRow; r < toRow; r++) {
+
+				int fileRow = (topDown) ? r : finalHeight - 1 - r;
+				buffer.get(dataOffset + fileRow * stride, row);
+				int index = r * width;
+
+				if (bits == 24) {
+					for (int col = 0, i = 0; col < width; col++, i += 3)
+						pixels[index + col] = ALPHA_MASK | (row[i + 2] & 0xff) << 16
+								| (row[i + 1] & 0xff) << 8 | (row[i] & 0xff);
+				} else if (bits == 32) {
+					for (int col = 0, i = 0; col < width; col++, i += 4)
+						pixels[index + col] = ALPHA_MASK | (row[i + 2] & 0xff) << 16
+								| (row[i + 1] & 0xff) << 8 | (row[i] & 0xff);
+				} else {
+					// indices are packed from the most significant bit on
+					int indexMask = (1 << bits) - 1;
+					for (int col = 0; col < width; col++) {
+						int bit = col * bits;
+						int value = (row[bit >> 3] & 0xff) >> (8 - bits - (bit & 7));
+						pixels[index + col] = colors[value & indexMask];
+					}
+				}
+			}
+		});
+
+		return RasterAccess.wrapWithAlpha(pixels, width, height);
+	}
+
+	/**
+	 * Reads width, height and maximum value of a PPM or PGM header, 
+	 * separated by whitespace and comments.
+	 *
+	 * @return (int[]) width, height, maximum value and offset of image data,
+	 * 		null if header is invalid
+	 */
+	private static int[] readPnmHeader(ByteBuffer buffer) {
+
+		int[] header = new int[4];
+		int position = 2;
+
+		for (int i = 0; i < 3; i++) {
+
+			while (position < buffer.limit()) {
+				byte b = buffer.get(position);
+				if (b == '#') {
+					while (position < buffer.limit() && buffer.get(position) != '\n')
+						position++;
+				} else if (Character.isWhitespace(b)) {
+					position++;
+				} else {
+					break;
+				}
+			}
+
+			long value = 0;
+			int start = position;
+			while (position < buffer.limit() && Character.isDigit(buffer.get(position)))
+				value = Math.min(Integer.MAX_VALUE, value * 10 + buffer.get(position++) - '0');
+
+			if (position == start)
+				return null;
+			header[i] = (int) value;
+		}
+
+		// a single whitespace separates header and data
+		header[3] = position + 1;
+		return header;
+	}
+
+	/**
+	 * Decodes binary PPM (P6) or PGM (P5) file.
+	 *
+	 * @return (BufferedImage) decoded image, null if header is invalid
+	 * @throws IOException if image data is missing
+	 */
+	private static BufferedImage readPnm(ByteBuffer buffer, String source) 
+			throws IOException {
+
+		boolean grey = buffer.get(1) == '5';
+		int[] header = readPnmHeader(buffer);
+
+		if (header == null)
+			return null;
+
+		int width = header[0];
+		int height = header[1];
+		int maxValue = header[2];
+		int position = header[3];
+
+		if (width <= 0 || height <= 0 || maxValue <= 0 || maxValue > 0xffff)
+			return null;
+		checkSize(width, height, source);
+
+		int sampleBytes = (maxValue < 256) ? 1 : 2;
+		int samples = (grey) ? 1 : 3;
+		// long, as rows of wide images hold more than Integer.MAX_VALUE bytes
+		long rowBytes = (long) width * samples * sampleBytes;
+
+		if (rowBytes * height > buffer.limit() - position)
+			throw new IOException("Image data of " + source + " is incomplete!");
+
+		int stride = (int) rowBytes;
+
+		// scales samples to 0-255 unless they already are
+		int[] scale = null;
+		if (maxValue != 255) {
+			scale = new int[maxValue + 1];
+			for (int value = 0; value <= maxValue; value++)
+				scale[value] = (value * 255 + maxValue / 2) / maxValue;
+		}
+
+		int dataOffset = position;
+		int[] table = scale;
+		int[] pixels = new int[width * height];
+
+		TileExecutor.getInstance().forEachTile(Workload.PIXEL, width, height, 
+				(fromRow, toRow) -> {
+
+			byte[] row = new byte[stride];
+			int[] values = new int[samples];
+
+			for (int r = fromRow; r < toRow; r++) {
+
+				buffer.get(dataOffset + r * stride, row);
+				int index = r * width;
+
+				if (table == null && !grey) {
+					for (int col = 0, i = 0; col < width; col++, i += 3)
+						pixels[index + col] = ALPHA_MASK | (row[i] & 0xff) << 16
+								| (row[i + 1] & 0xff) << 8 | (row[i + 2] & 0xff);
+					continue;
+				}
+
+				for (int col = 0, i = 0; col < width; col++) {
+
+					for (int s = 0; s < samples; s++, i += sampleBytes) {
+						int value = (sampleBytes == 1)
+								? row[i] & 0xff
+								: (row[i] & 0xff) << 8 | (row[i + 1] & 0xff);
+						values[s] = (table == null) ? value : table[Math.min(value, maxValue)];
+					}
+
+					pixels[index + col] = (grey)
+							? PixelColor.combine(values[0], values[0], values[0])
+							: PixelColor.combine(values[0], values[1], values[2]);
+				}
+			}
+		});
+
+		return RasterAccess.wrapWithAlpha(pixels, width, height);
+	}
+
+}
@@ -0,0 +1,192 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * A Mask marks the pixels of an image a filter is applied to. Pixels are
+ * masked if their color value in the mask image is above black.
+ * 
+ * Instead of keeping the color values of the mask image, masked pixels are
+ * stored as bits and each row as spans of masked columns. Together with the
+ * bounding box of all masked pixels, filters can skip unmasked areas.
+ */
+public class Mask {
+	
+	private final int width;
+	private final int height;
+	private final long[] bits;
+	
+	// spans of row r are spans[2k], spans[2k + 1] for rowSpans[r] <= k < rowSpans[r + 1]
+	private final int[] rowSpans;
+	private final int[] spans;
+	
+	private int minRow, maxRow, minCol, maxCol;
+	
+	/**
+	 * Creates Mask out of color values of a mask image.
+	 * 
+	 * @param maskPixel (int[]) color values of mask image
+	 * @param width (int) width of mask image
+	 * @param height (int) height of mask image
+	 */
+	public Mask(int[] maskPixel, int width, int height) {
+		
+		this.width = width;
+		this.height = height;
+		this.bits = new long[(maskPixel.length + 63) / 64];
+		this.rowSpans = new int[height + 1];
+		
+		minRow = height;
+		minCol = width;
+		maxRow = -1;
+		maxCol = -1;
+		
+		int[] found = new int[64];
+		int count = 0;
+		
+		for (int row = 0; row < height; row++) {
+			
+			rowSpans[row] = count / 2;
+			int rowStart = row * width;
+			int col = 0;
+			
+			while (col < width) {
+				
+				// skip unmasked pixels
+				while (col < width && maskPixel[rowStart + col] <= 0xff000000)
+					col++;
+				if (col == width)
+					break;
+				
+				int start = col;
+				while (col < width && maskPixel[rowStart + col] > 0xff000000) {
+					int index = rowStart + col;
+					bits[index >>> 6] |= 1L << index;
+					col++;
+				}
+				
+				if (count + 2 > found.length)
+					found = Arrays.copyOf(found, found.length * 2);
+				found[count++] = start;
+				found[count++] = col;
+				
+				minRow = Math.min(minRow, row);
+				maxRow = row;
+				minCol = Math.min(minCol, start);
+				maxCol = Math.max(maxCol, col - 1);
+			}
+		}
+		
+		rowSpans[height] = count / 2;
+		spans = Arrays.copyOf(found, count);
+	}
+	
+	/**
+	 * Returns Mask of a mask image. Masks are kept by the DerivedDataCache, 
+	 * so filters applied with the same mask image share it.
+	 * 
+	 * @param mask (BufferedImage) mask image, may be null
+	 * @return (Mask) mask of image, null if image is null
+	 */
+	public static Mask of(BufferedImage mask) {
+		return DerivedDataCache.getInstance().getMask(mask);
+	}
+	
+	/**
+	 * @param index (int) index of pixel in image array
+	 * @return (boolean) true if pixel is masked
+	 */
+	public boolean contains(int index) {
+		return (bits[index >>> 6] & (1L << index)) != 0;
+	}
+	
+	/**
+	 * @return (boolean) true if no pixel is masked
+	 */
+	public boolean isEmpty() {
+		return maxRow < 0;
+	}
+	
+	/**
+	 * @param row (int) row of image
+	 * @return (int) number of first span in row
+	 */
+	public int firstSpan(int row) {
+		return rowSpans[row];
+	}
+	
+	/**
+	 * @param row (int) row of image
+	 * @return (int) number after the last span in row
+	 */
+	public int endSpan(int row) {
+		return rowSpans[row + 1];
+	}
+	
+	/**
+	 * @param span (int) number of span
+	 * @return (int) first masked column of span
+	 */
+	public int spanStart(int span) {
+		return spans[2 * span];
+	}
+	
+	/**
+	 * @param span (int) number of span
+	 * @return (int) column after the last masked one of span
+	 */
+	public int spanEnd(int span) {
+		return spans[2 * span + 1];
+	}
+	
+	/**
+	 * @return (int) first row containing masked pixels, height if empty
+	 */
+	public int getMinRow() {
+		return minRow;
+	}
+	
+	/**
+	 * @return (int) last row containing masked pixels, -1 if empty
+	 */
+	public int getMaxRow() {
+		return maxRow;
+	}
+	
+	/**
+	 * @return (int) first column containing masked pixels, width if empty
+	 */
+	public int getMinCol() {
+		return minCol;
+	}
+	
+	/**
+	 * @return (int) last column containing masked pixels, -1 if empty
+	 */
+	public int getMaxCol() {
+		return maxCol;
+	}
+	
+	/**
+	 * @return (long) approximate bytes used by mask
+	 */
+	long getByteSize() {
+		return 8L * bits.length + 4L * rowSpans.length + 4L * spans.length;
+	}
+	
+	/**
+	 * @return (int) width of mask
+	 */
+	public int getWidth() {
+		return width;
+	}
+	
+	/**
+	 * @return (int) height of mask
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+}
@@ -13,7 +13,54 @@ public class MonochromeFilter extends PixelFilter {
 	 */
 	@Override
 	public int calculate(int pixelColor) {
-		return ColorContainer.fromValue(pixelColor).getGreyscale();
+		return PixelColor.greyscale(pixelColor);
+	}
+	
+	/**
+	 * Greyscale value only depends on channel sum.
+	 */
+	@Override
+	protected LookupTable compile() {
+		return LookupTable.fromChannelSum(sum -> PixelColor.grey(sum / 3));
+	}
+	
+	/**
+	 * Sets all planes to mean of planes.
+	 */
+	@Override
+	protected void calculatePlanes(PlanarImage image, PlanarImage output, 
+			int from, int to) {
+		
+		byte[] red = image.getRed(), green = image.getGreen(), blue = image.getBlue();
+		byte[] outRed = output.getRed(), outGreen = output.getGreen(), 
+				outBlue = output.getBlue();
+		
+		for (int i = from; i < to; i++) {
+			byte average = (byte) (((red[i] & 0xff) + (green[i] & 0xff) + (blue[i] & 0xff)) / 3);
+			outRed[i] = average;
+			outGreen[i] = average;
+			outBlue[i] = average;
+		}
+	}
+	
+	/**
+	 * Divides channel sum by 3 by multiplying with 2^17 / 3 and shifting, which
+	 * is exact for sums up to 765, and copies result into all colorbands.
+	 */
+	@Override
+	protected SpanKernel compileSpan() {
+		return (imagePixel, outputPixel, from, to) -> {
+			for (int i = from; i < to; i++) {
+				int pixel = imagePixel[i];
+				int sum = ((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff);
+				outputPixel[i] = 0xff000000 | ((sum * 0xaaab) >>> 17) * 0x010101;
+			}
+		};
+	}
+	
+	@Override
+	SpanKernel compileVector(VectorKernels kernels) {
+		return kernels.monochrome();
 	}
 
 }
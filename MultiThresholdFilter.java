@@ -1,5 +1,7 @@
 package de.studium.image_processing;
 
+import java.util.Arrays;
+
 /**
  * Multithreshold performs a threshold with multiple layers.
  * If one threshold is given, there will be two greyscale colors, if two
@@ -22,6 +24,11 @@ public class MultiThresholdFilter extends PixelFilter {
 	}
 
 	
+	@Override
+	public String getFingerprint() {
+		return super.getFingerprint() + Arrays.toString(thresholds);
+	}
+	
 	/**
 	 * Calculates greyscale value of a pixel based on which range its greyscale
 	 * value is in. All pixels in a range between two threshold will have the
@@ -29,8 +36,24 @@ public class MultiThresholdFilter extends PixelFilter {
 	 */
 	@Override
 	public int calculate(int pixelColor) {
-		
-		int averageValue = ColorContainer.fromValue(pixelColor).getAverage();
+		return calculateFromAverage(PixelColor.average(pixelColor));
+	}
+	
+	/**
+	 * Greyscale layer only depends on channel sum.
+	 */
+	@Override
+	protected LookupTable compile() {
+		return LookupTable.fromChannelSum(sum -> calculateFromAverage(sum / 3));
+	}
+	
+	/**
+	 * Calculates greyscale color of the range a greyscale value is in.
+	 * 
+	 * @param averageValue (int) 0-255 greyscale value of pixel
+	 * @return (int) representation of greyscale color of range
+	 */
+	private int calculateFromAverage(int averageValue) {
 		
 		for (int i = 0; i < thresholds.length; i++) {
 			
@@ -44,15 +67,11 @@ public class MultiThresholdFilter extends PixelFilter {
 				greyscale = (threshold + thresholds[i-1]) / 2;
 			
 			if (averageValue < threshold) {
-				return ColorContainer
-						.fromRGB(greyscale, greyscale, greyscale)
-						.getColorValue();
+				return PixelColor.grey(greyscale);
 			}
 		}
 		
-		return ColorContainer
-				.fromRGB(MAX_VALUE, MAX_VALUE, MAX_VALUE)
-				.getColorValue();
+		return PixelColor.grey(MAX_VALUE);
 		
 	}
 
@@ -0,0 +1,116 @@
+package de.studium.image_processing;
+
+/**
+ * PixelColor provides the bit operations of ColorContainer as static methods
+ * on int representations of colors. In contrast to ColorContainer no objects
+ * are created, so it can be used for every pixel of an image.
+ */
+public final class PixelColor {
+
+	/**
+	 * Only static methods, no instances.
+	 */
+	private PixelColor() {
+	}
+	
+	/**
+	 * Extracts red value, stored in bits 16-23.
+	 * 
+	 * @param pixelColor (int) representation of color
+	 * @return (int) 0-255 red part of color
+	 */
+	public static int red(int pixelColor) {
+		return (pixelColor >> 16) & 0xff;
+	}
+	
+	/**
+	 * Extracts green value, stored in bits 8-15.
+	 * 
+	 * @param pixelColor (int) representation of color
+	 * @return (int) 0-255 green part of color
+	 */
+	public static int green(int pixelColor) {
+		return (pixelColor >> 8) & 0xff;
+	}
+	
+	/**
+	 * Extracts blue value, stored in bits 0-7.
+	 * 
+	 * @param pixelColor (int) representation of color
+	 * @return (int) 0-255 blue part of color
+	 */
+	public static int blue(int pixelColor) {
+		return pixelColor & 0xff;
+	}
+	
+	/**
+	 * Extracts colorband from int representation.
+	 * 
+	 * @param pixelColor (int) representation of color to extract from
+	 * @param colorband (ColorBand) colorband to extract
+	 * @return (int) 0-255 value of specific colorband in color
+	 */
+	public static int extract(int pixelColor, ColorBand colorband) {
+		switch(colorband) {
+			case RED:
+				return red(pixelColor);
+			case GREEN:
+				return green(pixelColor);
+			case BLUE:
+			default:
+				return blue(pixelColor);
+		}
+	}
+	
+	/**
+	 * Gets color representation of RGB values. Shifts red / green / blue by
+	 * 16 / 8 / 0 to left and sets alpha to 0xff.
+	 * 
+	 * @param redValue (int) 0-255 red part of color
+	 * @param greenValue (int) 0-255 green part of color
+	 * @param blueValue (int) 0-255 blue part of color
+	 * @return (int) color representation
+	 */
+	public static int combine(int redValue, int greenValue, int blueValue) {
+		return 0xff000000 | redValue << 16 | greenValue << 8 | blueValue;
+	}
+	
+	/**
+	 * @param pixelColor (int) representation of color
+	 * @return (int) 0-765 sum of RGB values
+	 */
+	public static int channelSum(int pixelColor) {
+		return red(pixelColor) + green(pixelColor) + blue(pixelColor);
+	}
+	
+	/**
+	 * Arithmetic mean of RGB values, the greyscale value of a color.
+	 * 
+	 * @param pixelColor (int) representation of color
+	 * @return (int) 0-255 mean of RGB values
+	 */
+	public static int average(int pixelColor) {
+		return channelSum(pixelColor) / 3;
+	}
+	
+	/**
+	 * Color with RGB values all set to their mean.
+	 * 
+	 * @param pixelColor (int) representation of color
+	 * @return (int) representation of greyscale color
+	 */
+	public static int greyscale(int pixelColor) {
+		return grey(average(pixelColor));
+	}
+	
+	/**
+	 * Color with RGB values all set to the same value.
+	 * 
+	 * @param value (int) 0-255 value of all colorbands
+	 * @return (int) representation of greyscale color
+	 */
+	public static int grey(int value) {
+		return combine(value, value, value);
+	}
+	
+}
@@ -9,14 +9,89 @@ import java.awt.image.BufferedImage;
  */
 public abstract class PixelFilter implements Filter {
 
+	private static volatile boolean spanKernels = Boolean.parseBoolean(
+			System.getProperty("image_processing.spanKernels", "true"));
+	private static volatile boolean vectorKernels = Boolean.parseBoolean(
+			System.getProperty("image_processing.vectorKernels", "true"));
+	
+	// null if the Vector API is not available
+	private static final VectorKernels VECTOR_KERNELS = VectorKernels.load();
+	
+	private volatile LookupTable lookupTable;
+	private volatile SpanKernel spanKernel;
+	private volatile SpanKernel vectorKernel;
+	private volatile boolean compiled;
+	private boolean inPlace;
 	
 	/**
-	 * Extracts color values from image and creates output array of the same
-	 * size. For each pixel checks if masked. If not, assigns calculated value
-	 * to output array, else assigns pixel value.
-	 * Creates and returns image out of output array.
+	 * Calls process with in-place mode of filter.
+	 * 
+	 * @see #setInPlace(boolean)
 	 */
 	public BufferedImage process(BufferedImage ...images) {
+		return process(inPlace, images);
+	}
+	
+	/**
+	 * Sets whether output is written into the raster of the input image. Only
+	 * possible for direct images (see RasterAccess), like the outputs of 
+	 * filters, others still get a new output image.
+	 * 
+	 * @param inPlace (boolean) true to overwrite input image
+	 */
+	public void setInPlace(boolean inPlace) {
+		this.inPlace = inPlace;
+	}
+	
+	/**
+	 * Sets whether filters providing a SpanKernel use it. Otherwise each 
+	 * pixel is calculated or looked up on its own.
+	 * 
+	 * @param enabled (boolean) true to use span kernels
+	 */
+	public static void setSpanKernels(boolean enabled) {
+		spanKernels = enabled;
+	}
+	
+	/**
+	 * @return (boolean) true if span kernels are used
+	 */
+	public static boolean isSpanKernels() {
+		return spanKernels;
+	}
+	
+	/**
+	 * Sets whether span kernels using the Vector API are preferred over 
+	 * plain ones, if the JVM provides the API.
+	 * 
+	 * @param enabled (boolean) true to use Vector API kernels
+	 */
+	public static void setVectorKernels(boolean enabled) {
+		vectorKernels = enabled;
+	}
+	
+	/**
+	 * @return (boolean) true if Vector API kernels are used, false if they
+	 * 		are disabled or the JVM does not provide the API
+	 */
+	public static boolean isVectorKernels() {
+		return vectorKernels && VECTOR_KERNELS != null;
+	}
+	
+	/**
+	 * Extracts color values from image and creates output array of the same
+	 * size, or uses the input array if processing in place. For each row
+	 * copies spans of unmasked pixels and assigns calculated values to spans
+	 * of masked pixels. Tiles of rows are processed
+	 * in parallel by the TileExecutor. Spans are passed to the SpanKernel of
+	 * the filter if it has one, else colors are looked up instead of
+	 * calculated if the filter is compiled to a LookupTable.
+	 * Returns input image if processed in place, else creates and returns 
+	 * image out of output array.
+	 * 
+	 * @param inPlace (boolean) true to overwrite input image if possible
+	 */
+	BufferedImage process(boolean inPlace, BufferedImage ...images) {
 		
 		BufferedImage image, mask;
 		
@@ -26,32 +101,240 @@ public abstract class PixelFilter implements Filter {
 		if (image == null)	// nothing to process
 			return null;
 		
-		BufferedImage output;
-		int[] imagePixel, maskPixel, outputPixel;
+		int[] imagePixel, outputPixel;
+		Mask maskBits;
 		int width, height;
+		boolean writeInPlace;
 
 		width = image.getWidth();
 		height = image.getHeight();
+		writeInPlace = inPlace && RasterAccess.isDirect(image);
 
-		imagePixel = image.getRGB(0, 0, width, height, null, 0, width);
-		outputPixel = new int[imagePixel.length];
+		imagePixel = DerivedDataCache.getInstance().getPixels(image);
+		outputPixel = (writeInPlace) 
+				? imagePixel 
+				: new int[imagePixel.length];
 				
-		maskPixel = (mask != null) 
-				? mask.getRGB(0, 0, width, height, null, 0, width) 
-				: null;	
+		maskBits = Mask.of(mask);
+		
+		LookupTable table = getLookupTable();
+		SpanKernel kernel = (spanKernels) ? getSpanKernel() : null;
 				
-		for (int i = 0; i < imagePixel.length; i++)
-			if (maskPixel == null || maskPixel[i] > 0xff000000)
-				outputPixel[i] = calculate(imagePixel[i]);
-			else
-				outputPixel[i] = imagePixel[i];
+		TileExecutor.getInstance().forEachTile(Workload.PIXEL, width, height, 
+				(fromRow, toRow) -> {
+			for (int row = fromRow; row < toRow; row++) {
+				
+				int rowStart = row * width;
+				
+				if (maskBits == null) {
+					calculateRange(imagePixel, outputPixel, kernel, table, rowStart, 
+							rowStart + width);
+					continue;
+				}
+				
+				// copy unmasked gaps, calculate masked spans
+				int col = 0;
+				for (int span = maskBits.firstSpan(row); span < maskBits.endSpan(row); span++) {
+					int start = maskBits.spanStart(span);
+					int end = maskBits.spanEnd(span);
+					copyRange(imagePixel, outputPixel, rowStart + col, rowStart + start);
+					calculateRange(imagePixel, outputPixel, kernel, table, rowStart + start, 
+							rowStart + end);
+					col = end;
+				}
+				copyRange(imagePixel, outputPixel, rowStart + col, rowStart + width);
+			}
+		});
 		
-		output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		output.setRGB(0, 0, width, height, outputPixel, 0, width);
-		return output;
+		if (!writeInPlace)
+			return RasterAccess.wrapWithAlpha(outputPixel, width, height);
+		
+		// data derived from the image is outdated
+		DerivedDataCache.getInstance().invalidate(image);
+		return image;
+	
+	}
 	
+	/**
+	 * Processes planar image like a packed one. Output starts as a copy of
+	 * image if masked, masked spans are passed to calculatePlanes.
+	 */
+	@Override
+	public PlanarImage process(PlanarImage image, BufferedImage mask) {
+		
+		if (image == null)	// nothing to process
+			return null;
+		
+		int width = image.getWidth();
+		Mask maskBits = Mask.of(mask);
+		PlanarImage output = (maskBits == null) 
+				? new PlanarImage(width, image.getHeight()) 
+				: image.copy();
+		
+		TileExecutor.getInstance().forEachTile(Workload.PIXEL, width, 
+				image.getHeight(), (fromRow, toRow) -> {
+			for (int row = fromRow; row < toRow; row++) {
+				
+				int rowStart = row * width;
+				
+				if (maskBits == null) {
+					calculatePlanes(image, output, rowStart, rowStart + width);
+					continue;
+				}
+				
+				for (int span = maskBits.firstSpan(row); span < maskBits.endSpan(row); span++)
+					calculatePlanes(image, output, rowStart + maskBits.spanStart(span), 
+							rowStart + maskBits.spanEnd(span));
+			}
+		});
+		
+		return output;
 	}
 	
 	protected abstract int calculate(int pixelColor);
+	
+	/**
+	 * Filters compiled to a LookupTable look up planes directly.
+	 * 
+	 * @see #calculatePlanes(PlanarImage, PlanarImage, int, int)
+	 */
+	@Override
+	public boolean isPlanar() {
+		return getLookupTable() != null;
+	}
+	
+	/**
+	 * Assigns looked up values to a range of the output planes if filter is
+	 * compiled to a LookupTable, else combines, calculates and splits each 
+	 * pixel. Filters working on colorbands override it to process planes 
+	 * with arithmetic of their own.
+	 * 
+	 * @param image (PlanarImage) image to read
+	 * @param output (PlanarImage) image to fill
+	 * @param from (int) first index of range
+	 * @param to (int) index after the last one of range
+	 */
+	protected void calculatePlanes(PlanarImage image, PlanarImage output, 
+			int from, int to) {
+		
+		LookupTable table = getLookupTable();
+		
+		if (table != null) {
+			table.lookupPlanes(image, output, from, to);
+			return;
+		}
+		
+		for (int i = from; i < to; i++)
+			output.setPixel(i, calculate(image.getPixel(i)));
+	}
+	
+	/**
+	 * Assigns values of span kernel, looked up or calculated values to a 
+	 * range of the output array.
+	 * 
+	 * @param imagePixel (int[]) color values of image
+	 * @param outputPixel (int[]) color values to fill
+	 * @param kernel (SpanKernel) kernel of filter, null if not used
+	 * @param table (LookupTable) table of filter, null if not compiled
+	 * @param from (int) first index of range
+	 * @param to (int) index after the last one of range
+	 */
+	private void calculateRange(int[] imagePixel, int[] outputPixel, 
+			SpanKernel kernel, LookupTable table, int from, int to) {
+		
+		if (kernel != null)
+			kernel.apply(imagePixel, outputPixel, from, to);
+		else if (table != null)
+			for (int i = from; i < to; i++)
+				outputPixel[i] = table.lookup(imagePixel[i]);
+		else
+			for (int i = from; i < to; i++)
+				outputPixel[i] = calculate(imagePixel[i]);
+	}
+	
+	/**
+	 * Copies a range of unmasked pixels, nothing to do if processed in place.
+	 */
+	private static void copyRange(int[] imagePixel, int[] outputPixel, 
+			int from, int to) {
+		if (imagePixel != outputPixel && to > from)
+			System.arraycopy(imagePixel, from, outputPixel, from, to - from);
+	}
+	
+	/**
+	 * Hook for filters whose calculation can be precomputed. Filters that
+	 * return a LookupTable declare it to give the same results as calculate.
+	 * 
+	 * @return (LookupTable) table replacing calculate, null if not compilable
+	 */
+	protected LookupTable compile() {
+		return null;
+	}
+	
+	/**
+	 * Hook for filters whose calculation is simple arithmetic on the packed
+	 * color. Filters that return a SpanKernel declare it to give the same 
+	 * results as calculate.
+	 * 
+	 * @return (SpanKernel) kernel replacing calculate on spans, null if none
+	 */
+	protected SpanKernel compileSpan() {
+		return null;
+	}
+	
+	/**
+	 * Hook for filters with a SpanKernel that can be created by the Vector
+	 * API. Only called if the JVM provides it, the kernel of compileSpan is
+	 * used otherwise.
+	 * 
+	 * @param kernels (VectorKernels) kernels using the Vector API
+	 * @return (SpanKernel) kernel replacing calculate on spans, null if none
+	 */
+	SpanKernel compileVector(VectorKernels kernels) {
+		return null;
+	}
+	
+	/**
+	 * Compiles filter on first call.
+	 * 
+	 * @return (LookupTable) table replacing calculate, null if not compilable
+	 */
+	LookupTable getLookupTable() {
+		compileOnce();
+		return lookupTable;
+	}
+	
+	/**
+	 * Compiles filter on first call.
+	 * 
+	 * @return (SpanKernel) kernel replacing calculate on spans, the one of
+	 * 		the Vector API if used, null if none
+	 */
+	SpanKernel getSpanKernel() {
+		compileOnce();
+		return (vectorKernels && vectorKernel != null) ? vectorKernel : spanKernel;
+	}
+	
+	private void compileOnce() {
+		if (!compiled) {
+			lookupTable = compile();
+			spanKernel = compileSpan();
+			vectorKernel = (VECTOR_KERNELS != null) ? compileVector(VECTOR_KERNELS) : null;
+			compiled = true;
+		}
+	}
+	
+	/**
+	 * Calculates color of a pixel, by LookupTable if filter is compilable.
+	 * 
+	 * @param pixelColor (int) representation of color
+	 * @return (int) representation of resulting color
+	 */
+	int apply(int pixelColor) {
+		LookupTable table = getLookupTable();
+		return (table != null)
+				? table.lookup(pixelColor)
+				: calculate(pixelColor);
+	}
 }
 
@@ -1,5 +1,8 @@
 package de.studium.image_processing;
 
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
 /**
  * PixelGraphicFilter sets all pixels inside a kernel to the average color
  * of that kernel
@@ -13,6 +16,124 @@ public class PixelGraphicFilter extends AreaFilter {
 		super(size);
 	}
 	
+	/**
+	 * Calculates average of each pixelblock once and assigns it to all masked
+	 * pixels of the block. Blocks are processed in parallel by the tile their
+	 * first row is in. With a mask, only blocks overlapping the bounding box
+	 * of masked pixels are calculated.
+	 */
+	@Override
+	public BufferedImage process(BufferedImage... input) {
+		
+		BufferedImage image, mask;
+		
+		image = (input.length > 0) ? input[0] : null;
+		mask = (input.length > 1) ? input[1] : null;
+		
+		if (image == null) // nothing to process;
+			return null;
+		
+		int[] imageArray, outputArray;
+		Mask maskBits;
+		int width, height;
+		
+		width = image.getWidth();
+		height = image.getHeight();
+		
+		imageArray = DerivedDataCache.getInstance().getPixels(image);
+		maskBits = Mask.of(mask);
+		
+		if (maskBits == null) {
+			outputArray = new int[imageArray.length];
+		} else {
+			// unmasked pixels keep their value
+			outputArray = Arrays.copyOf(imageArray, imageArray.length);
+			if (maskBits.isEmpty())
+				return RasterAccess.wrapWithAlpha(outputArray, width, height);
+		}
+		
+		// blocks to calculate
+		int firstRow = (maskBits != null) ? maskBits.getMinRow() / size * size : 0;
+		int lastRow = (maskBits != null) ? maskBits.getMaxRow() : height - 1;
+		int firstCol = (maskBits != null) ? maskBits.getMinCol() / size * size : 0;
+		int lastCol = (maskBits != null) ? maskBits.getMaxCol() : width - 1;
+		
+		TileExecutor.getInstance().forEachTile(Workload.AREA, width, 
+				lastRow + 1 - firstRow, (fromRow, toRow) -> {
+			
+			// first block starting in tile
+			int blockRow = (firstRow + fromRow + size - 1) / size * size;
+			
+			for (; blockRow < firstRow + toRow; blockRow += size)
+				for (int blockCol = firstCol; blockCol <= lastCol; blockCol += size)
+					fillBlock(imageArray, maskBits, outputArray, blockRow, blockCol, 
+							width, height);
+		});
+		
+		return RasterAccess.wrapWithAlpha(outputArray, width, height);
+	}
+	
+	/**
+	 * Assigns average of a block to its masked pixels. Average is only 
+	 * calculated if the block contains masked pixels.
+	 */
+	private void fillBlock(int[] pixel, Mask mask, int[] outputPixel, 
+			int blockRow, int blockCol, int width, int height) {
+		
+		int average = 0;
+		boolean calculated = false;
+		
+		for (int row = blockRow; row < blockRow + size && row < height; row++) {
+			for (int col = blockCol; col < blockCol + size && col < width; col++) {
+				
+				int index = row * width + col;
+				
+				if (mask != null && !mask.contains(index))
+					continue;
+				
+				if (!calculated) {
+					average = getBlockAverage(pixel, mask, blockRow * width + blockCol, width);
+					calculated = true;
+				}
+				outputPixel[index] = average;
+			}
+		}
+	}
+	
+	/**
+	 * Calculates average color of the size * size pixels starting at index, 
+	 * the same way calculate does for the start of a pixelblock. Masked and
+	 * overlapping pixels are ignored.
+	 */
+	private int getBlockAverage(int[] pixel, Mask mask, int index, int width) {
+		
+		int redSum = 0;
+		int greenSum = 0;
+		int blueSum = 0;
+		int pixelCount = 0;
+		
+		for (int row = 0; row < size; row++) {
+			for (int col = 0; col < size; col++) {
+				
+				int imageIndex = index + row * width + col;
+				
+				if (imageIndex < pixel.length && imageIndex > 0)
+					if (mask == null || mask.contains(imageIndex)) {
+						redSum += PixelColor.red(pixel[imageIndex]);
+						greenSum += PixelColor.green(pixel[imageIndex]);
+						blueSum += PixelColor.blue(pixel[imageIndex]);
+						pixelCount++;
+					}
+			}
+		}
+		
+		if (pixelCount == 0)   // black if there are no valid pixels
+			return 0xff000000;
+		
+		return PixelColor.combine(redSum / pixelCount, greenSum / pixelCount, 
+				blueSum / pixelCount);
+	}
+	
 	/**
 	 * Calculates value of a pixel by creating a kernel around it. Performs 
 	 * new calculation if pixel is start of a new pixelblock, else 
@@ -20,7 +141,7 @@ public class PixelGraphicFilter extends AreaFilter {
 	 * New value is average of values in containing block.
 	 */
 	@Override
-	protected int calculate(int[] pixel, int[] maskPixel, int index, int width, int height) {
+	protected int calculate(int[] pixel, Mask mask, int index, int width, int height) {
 		
 		int[] kernel = new int[size * size];
 		
@@ -56,7 +177,7 @@ public class PixelGraphicFilter extends AreaFilter {
 				// check for overlap and mask before assigning value
 				kernel[kernelIndex] = IGNORE_PIXEL;
 				if (index + imageIndex < pixel.length && index + imageIndex > 0)
-					if (maskPixel == null || maskPixel[index + imageIndex] > 0xff000000)
+					if (mask == null || mask.contains(index + imageIndex))
 						kernel[kernelIndex] = pixel[index + imageIndex];
 			}
 		}
@@ -0,0 +1,177 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A PlanarImage stores the red, green and blue values of an image in three
+ * separate arrays (planes) instead of one packed int per pixel. Filters
+ * working on each colorband can read and write a plane as a whole, without
+ * extracting and combining bits.
+ *
+ * Values of a pixel are stored at index row * width + column of each plane,
+ * like in the int[] of a BufferedImage. There is no alpha, all colors are
+ * opaque like the ones filters create.
+ */
+public class PlanarImage {
+
+	private final int width;
+	private final int height;
+	private final byte[] red;
+	private final byte[] green;
+	private final byte[] blue;
+
+	/**
+	 * Creates black image.
+	 *
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 */
+	public PlanarImage(int width, int height) {
+		this(width, height, new byte[width * height], new byte[width * height],
+				new byte[width * height]);
+	}
+
+	/**
+	 * Creates image backed by given planes, without copying them.
+	 *
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @param red (byte[]) 0-255 red values, width * height long
+	 * @param green (byte[]) 0-255 green values, width * height long
+	 * @param blue (byte[]) 0-255 blue values, width * height long
+	 */
+	public PlanarImage(int width, int height, byte[] red, byte[] green, byte[] blue) {
+		this.width = width;
+		this.height = height;
+		this.red = red;
+		this.green = green;
+		this.blue = blue;
+	}
+
+	/**
+	 * Splits color values of image into planes. Tiles of rows are converted
+	 * in parallel by the TileExecutor.
+	 *
+	 * @param image (BufferedImage) image to convert, may be null
+	 * @return (PlanarImage) planar copy of image, null if image is null
+	 */
+	public static PlanarImage of(BufferedImage image) {
+
+		if (image == null)
+			return null;
+
+		int width = image.getWidth();
+		int[] pixels = DerivedDataCache.getInstance().getPixels(image);
+		PlanarImage planar = new PlanarImage(width, image.getHeight());
+
+		TileExecutor.getInstance().forEachTile(Workload.PIXEL, width, 
+				image.getHeight(), (fromRow, toRow) -> {
+			for (int i = fromRow * width; i < toRow * width; i++) {
+				planar.red[i] = (byte) (pixels[i] >> 16);
+				planar.green[i] = (byte) (pixels[i] >> 8);
+				planar.blue[i] = (byte) pixels[i];
+			}
+		});
+
+		return planar;
+	}
+
+	/**
+	 * Combines planes into an image of TYPE_INT_ARGB. Tiles of rows are
+	 * converted in parallel by the TileExecutor.
+	 *
+	 * @return (BufferedImage) image holding the same colors
+	 */
+	public BufferedImage toBufferedImage() {
+
+		int[] pixels = new int[width * height];
+
+		TileExecutor.getInstance().forEachTile(Workload.PIXEL, width, height, 
+				(fromRow, toRow) -> {
+			for (int i = fromRow * width; i < toRow * width; i++)
+				pixels[i] = getPixel(i);
+		});
+
+		return RasterAccess.wrapWithAlpha(pixels, width, height);
+	}
+
+	/**
+	 * @return (PlanarImage) image with copies of all planes
+	 */
+	public PlanarImage copy() {
+		return new PlanarImage(width, height, red.clone(), green.clone(), blue.clone());
+	}
+
+	/**
+	 * @param index (int) index of pixel
+	 * @return (int) representation of color of pixel, alpha set to 0xff
+	 */
+	public int getPixel(int index) {
+		return PixelColor.combine(red[index] & 0xff, green[index] & 0xff,
+				blue[index] & 0xff);
+	}
+
+	/**
+	 * Stores RGB values of color, ignoring its alpha.
+	 *
+	 * @param index (int) index of pixel
+	 * @param pixelColor (int) representation of color
+	 */
+	public void setPixel(int index, int pixelColor) {
+		red[index] = (byte) (pixelColor >> 16);
+		green[index] = (byte) (pixelColor >> 8);
+		blue[index] = (byte) pixelColor;
+	}
+
+	/**
+	 * @param colorband (ColorBand) colorband to get
+	 * @return (byte[]) plane of colorband, writing to it changes the image
+	 */
+	public byte[] getPlane(ColorBand colorband) {
+		switch(colorband) {
+			case RED:
+				return red;
+			case GREEN:
+				return green;
+			case BLUE:
+			default:
+				return blue;
+		}
+	}
+
+	/**
+	 * @return (byte[]) plane of red values
+	 */
+	public byte[] getRed() {
+		return red;
+	}
+
+	/**
+	 * @return (byte[]) plane of green values
+	 */
+	public byte[] getGreen() {
+		return green;
+	}
+
+	/**
+	 * @return (byte[]) plane of blue values
+	 */
+	public byte[] getBlue() {
+		return blue;
+	}
+
+	/**
+	 * @return (int) width of image
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return (int) height of image
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+}
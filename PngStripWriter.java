@@ -0,0 +1,269 @@
+package de.studium.image_processing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PngStripWriter writes a 24 bit PNG file strip by strip. Rows of a strip
+ * are split into segments, which are filtered and deflated in parallel by
+ * the TileExecutor and written as IDAT chunks in order.
+ *
+ * Each segment is deflated on its own and flushed to a byte boundary, so 
+ * the compressed segments concatenated form one deflate stream. The last 
+ * 32 KB of data before a segment are given to its Deflater as dictionary,
+ * so matches across segment borders are still found. The Adler-32 checksum
+ * of the stream is combined out of the checksums of the segments.
+ *
+ * The compression level defaults to the system property 
+ * "image_processing.pngLevel" or 6.
+ */
+public class PngStripWriter extends StripWriter {
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	private static final int SEGMENT_BYTES = 1 << 18;
+	private static final int DICTIONARY_BYTES = 1 << 15;
+	private static final int ADLER_BASE = 65521;
+	private static final int FILTER_SUB = 1;
+
+	private final int level = Integer.getInteger("image_processing.pngLevel", 6);
+	private final int rowBytes;
+	private byte[] history = new byte[0];
+	private long adler = 1;
+
+	/**
+	 * Deflated segment of rows.
+	 */
+	private static class Segment {
+
+		byte[] compressed;
+		long adler;
+		long length;
+		byte[] tail;
+	}
+
+	/**
+	 * Creates file and writes PNG signature, header and start of stream.
+	 *
+	 * @param file (File) file to write to
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @throws IOException if file can not be written
+	 */
+	public PngStripWriter(File file, int width, int height) throws IOException {
+		this(create(file), width, height);
+	}
+
+	/**
+	 * Writes PNG signature, header and start of stream to a channel.
+	 *
+	 * @param channel (WritableByteChannel) channel to write to, closed with writer
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @throws IOException if channel can not be written
+	 */
+	public PngStripWriter(WritableByteChannel channel, int width, int height) 
+			throws IOException {
+		super(channel, width, height, ByteOrder.BIG_ENDIAN);
+
+		// filter type and red, green and blue of each pixel
+		this.rowBytes = 1 + 3 * width;
+
+		put(SIGNATURE, 0, SIGNATURE.length);
+
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8;		// bits per sample
+		header[9] = 2;		// truecolor
+		writeChunk("IHDR", header, header.length);
+
+		// zlib header, 32 KB window, default compression
+		writeChunk("IDAT", new byte[] { 0x78, (byte) 0x9c }, 2);
+	}
+
+	/**
+	 * Deflates segments of rows in parallel and writes them in order.
+	 */
+	@Override
+	protected void encodeRows(int[] pixels, int fromRow, int toRow) throws IOException {
+
+		int segmentRows = Math.max(1, SEGMENT_BYTES / rowBytes);
+		Segment[] segments = new Segment[(toRow - fromRow + segmentRows - 1) / segmentRows];
+		byte[] previous = history;
+
+		// without a pool a tile may hold several segments
+		TileExecutor.getInstance().forEachTile(toRow - fromRow, segmentRows, (from, to) -> {
+			for (int start = from; start < to; start += segmentRows) {
+
+				int end = Math.min(to, start + segmentRows);
+
+				// rows before segment that are still in reach of the window
+				int dictionaryRows = (DICTIONARY_BYTES + rowBytes - 1) / rowBytes;
+				int dictionaryFrom = Math.max(0, start - dictionaryRows);
+				byte[] dictionary = (start == 0)
+						? previous
+						: filter(pixels, fromRow + dictionaryFrom, fromRow + start);
+
+				segments[start / segmentRows] = deflate(
+						filter(pixels, fromRow + start, fromRow + end), dictionary);
+			}
+		});
+
+		for (Segment segment : segments) {
+			writeChunk("IDAT", segment.compressed, segment.compressed.length);
+			adler = combineAdler(adler, segment.adler, segment.length);
+		}
+
+		if (segments.length > 0)
+			history = segments[segments.length - 1].tail;
+	}
+
+	/**
+	 * Ends deflate stream by an empty last block, writes its checksum and
+	 * the end chunk.
+	 */
+	@Override
+	protected void finish() throws IOException {
+
+		Deflater deflater = new Deflater(level, true);
+		deflater.finish();
+		byte[] end = new byte[16];
+		int length = 0;
+		while (!deflater.finished())
+			length += deflater.deflate(end, length, end.length - length);
+		deflater.end();
+
+		putInt(end, length, (int) adler);
+		writeChunk("IDAT", end, length + 4);
+		writeChunk("IEND", new byte[0], 0);
+	}
+
+	/**
+	 * Filters rows by subtracting the left neighbour of each value (filter
+	 * type Sub).
+	 *
+	 * @return (byte[]) filtered rows, each starting with the filter type
+	 */
+	private byte[] filter(int[] pixels, int fromRow, int toRow) {
+
+		byte[] data = new byte[(toRow - fromRow) * rowBytes];
+		int index = 0;
+
+		for (int row = fromRow; row < toRow; row++) {
+
+			data[index++] = FILTER_SUB;
+			int left = 0;
+
+			for (int col = 0; col < width; col++) {
+				int pixel = pixels[row * width + col];
+				data[index++] = (byte) (PixelColor.red(pixel) - PixelColor.red(left));
+				data[index++] = (byte) (PixelColor.green(pixel) - PixelColor.green(left));
+				data[index++] = (byte) (PixelColor.blue(pixel) - PixelColor.blue(left));
+				left = pixel;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Deflates data without ending the stream, flushed to a byte boundary.
+	 *
+	 * @param data (byte[]) filtered rows
+	 * @param dictionary (byte[]) data before, only its last 32 KB are used
+	 * @return (Segment) compressed data, its checksum and the last 32 KB
+	 */
+	private Segment deflate(byte[] data, byte[] dictionary) {
+
+		Deflater deflater = new Deflater(level, true);
+		int dictionaryLength = Math.min(dictionary.length, DICTIONARY_BYTES);
+		if (dictionaryLength > 0)
+			deflater.setDictionary(dictionary, dictionary.length - dictionaryLength,
+					dictionaryLength);
+		deflater.setInput(data);
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+		byte[] chunk = new byte[1 << 16];
+		int length;
+		do {
+			length = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+			compressed.write(chunk, 0, length);
+		} while (length == chunk.length || !deflater.needsInput());
+		deflater.end();
+
+		Adler32 checksum = new Adler32();
+		checksum.update(data);
+
+		Segment segment = new Segment();
+		segment.compressed = compressed.toByteArray();
+		segment.adler = checksum.getValue();
+		segment.length = data.length;
+		segment.tail = Arrays.copyOfRange(data, 
+				Math.max(0, data.length - DICTIONARY_BYTES), data.length);
+		return segment;
+	}
+
+	/**
+	 * Calculates Adler-32 checksum of two concatenated parts out of their
+	 * checksums, like adler32_combine of zlib.
+	 *
+	 * @param first (long) checksum of first part
+	 * @param second (long) checksum of second part
+	 * @param secondLength (long) bytes of second part
+	 * @return (long) checksum of both parts
+	 */
+	static long combineAdler(long first, long second, long secondLength) {
+
+		long remainder = secondLength % ADLER_BASE;
+		long sum1 = first & 0xffff;
+		long sum2 = (remainder * sum1) % ADLER_BASE;
+
+		sum1 += (second & 0xffff) + ADLER_BASE - 1;
+		sum2 += ((first >> 16) & 0xffff) + ((second >> 16) & 0xffff) 
+				+ ADLER_BASE - remainder;
+
+		if (sum1 >= ADLER_BASE)
+			sum1 -= ADLER_BASE;
+		if (sum1 >= ADLER_BASE)
+			sum1 -= ADLER_BASE;
+		if (sum2 >= 2L * ADLER_BASE)
+			sum2 -= 2L * ADLER_BASE;
+		if (sum2 >= ADLER_BASE)
+			sum2 -= ADLER_BASE;
+
+		return sum1 | (sum2 << 16);
+	}
+
+	/**
+	 * Writes chunk of length, type, data and CRC-32 of type and data.
+	 */
+	private void writeChunk(String type, byte[] data, int length) throws IOException {
+
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+
+		reserve(8).putInt(length).put(typeBytes);
+		put(data, 0, length);
+		reserve(4).putInt((int) crc.getValue());
+	}
+
+	/**
+	 * Stores int in big endian order.
+	 */
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+}
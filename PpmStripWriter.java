@@ -0,0 +1,60 @@
+package de.studium.image_processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * PpmStripWriter writes a binary PPM (P6) file strip by strip. After a
+ * short text header, the red, green and blue values of each pixel follow
+ * row by row without padding.
+ */
+public class PpmStripWriter extends StripWriter {
+	
+	/**
+	 * Creates file and writes PPM header for given dimensions.
+	 * 
+	 * @param file (File) file to write to
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @throws IOException if file can not be written
+	 */
+	public PpmStripWriter(File file, int width, int height) throws IOException {
+		this(create(file), width, height);
+	}
+	
+	/**
+	 * Writes PPM header for given dimensions to a channel.
+	 * 
+	 * @param channel (WritableByteChannel) channel to write to, closed with writer
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @throws IOException if channel can not be written
+	 */
+	public PpmStripWriter(WritableByteChannel channel, int width, int height) 
+			throws IOException {
+		super(channel, width, height, ByteOrder.BIG_ENDIAN);
+		
+		byte[] header = String.format("P6\n%d %d\n255\n", width, height)
+				.getBytes(StandardCharsets.US_ASCII);
+		put(header, 0, header.length);
+	}
+	
+	/**
+	 * Writes red, green and blue of each pixel.
+	 */
+	@Override
+	protected void encodeRows(int[] pixels, int fromRow, int toRow) throws IOException {
+		
+		for (int i = fromRow * width; i < toRow * width; i++) {
+			int pixel = pixels[i];
+			reserve(3)
+					.put((byte) PixelColor.red(pixel))
+					.put((byte) PixelColor.green(pixel))
+					.put((byte) PixelColor.blue(pixel));
+		}
+	}
+
+}
@@ -0,0 +1,137 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * RasterAccess reads and writes the color values of images. Images of
+ * TYPE_INT_ARGB store them in an int[] in the same layout the filters use,
+ * so their array is accessed directly instead of being copied by getRGB and
+ * setRGB. Filters create their outputs as such images. Images of 
+ * TYPE_INT_RGB store no alpha, so their array is copied once with alpha set.
+ */
+public final class RasterAccess {
+
+	private static final int RED_MASK = 0x00ff0000;
+	private static final int GREEN_MASK = 0x0000ff00;
+	private static final int BLUE_MASK = 0x000000ff;
+	private static final int ALPHA_MASK = 0xff000000;
+	
+	/**
+	 * Only static methods, no instances.
+	 */
+	private RasterAccess() {
+	}
+	
+	/**
+	 * Checks if color values of image are stored in an int[] in the layout 
+	 * of getRGB, covering exactly the pixels of the image. Only images of 
+	 * TYPE_INT_ARGB store alpha, so their array can be used as it is.
+	 * 
+	 * @param image (BufferedImage) image to check
+	 * @return (boolean) true if array can be accessed directly
+	 */
+	public static boolean isDirect(BufferedImage image) {
+		return image.getType() == BufferedImage.TYPE_INT_ARGB && isPacked(image);
+	}
+	
+	/**
+	 * Checks if image stores one int per pixel, covering exactly the pixels
+	 * of the image.
+	 */
+	private static boolean isPacked(BufferedImage image) {
+		
+		if (image.getType() != BufferedImage.TYPE_INT_RGB
+				&& image.getType() != BufferedImage.TYPE_INT_ARGB)
+			return false;
+		
+		WritableRaster raster = image.getRaster();
+		DataBuffer buffer = raster.getDataBuffer();
+		
+		if (!(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+				|| !(buffer instanceof DataBufferInt))
+			return false;
+		
+		SinglePixelPackedSampleModel model = 
+				(SinglePixelPackedSampleModel) raster.getSampleModel();
+		
+		return raster.getMinX() == 0 && raster.getMinY() == 0
+				&& raster.getSampleModelTranslateX() == 0
+				&& raster.getSampleModelTranslateY() == 0
+				&& model.getScanlineStride() == image.getWidth()
+				&& buffer.getNumBanks() == 1
+				&& buffer.getOffset() == 0
+				&& buffer.getSize() == image.getWidth() * image.getHeight();
+	}
+	
+	/**
+	 * Returns color values of image in the layout of getRGB. For direct images
+	 * this is the array of the image itself, so writing to it changes the
+	 * image. The array of TYPE_INT_RGB images is copied with alpha set, 
+	 * without writing to the image. Other images are converted by getRGB.
+	 * 
+	 * @param image (BufferedImage) image to read
+	 * @return (int[]) color values of image
+	 */
+	public static int[] getPixels(BufferedImage image) {
+		
+		int width = image.getWidth();
+		int height = image.getHeight();
+		
+		if (!isPacked(image))
+			return image.getRGB(0, 0, width, height, null, 0, width);
+		
+		int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		
+		if (image.getType() == BufferedImage.TYPE_INT_ARGB)
+			return data;
+		
+		int[] pixels = new int[data.length];
+		TileExecutor.getInstance().forEachTile(Workload.PIXEL, width, height, 
+				(fromRow, toRow) -> {
+			for (int i = fromRow * width; i < toRow * width; i++)
+				pixels[i] = data[i] | ALPHA_MASK;
+		});
+		return pixels;
+	}
+	
+	/**
+	 * Creates image of TYPE_INT_ARGB backed by given array, without copying
+	 * it. Values of the array keep their alpha.
+	 * 
+	 * @param pixels (int[]) color values, width * height long
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @return (BufferedImage) image using pixels as its raster
+	 */
+	public static BufferedImage wrapWithAlpha(int[] pixels, int width, int height) {
+		
+		DirectColorModel model = 
+				new DirectColorModel(32, RED_MASK, GREEN_MASK, BLUE_MASK, ALPHA_MASK);
+		DataBufferInt buffer = new DataBufferInt(pixels, width * height);
+		WritableRaster raster = WritableRaster.createPackedRaster(buffer, width, height,
+				width, new int[] { RED_MASK, GREEN_MASK, BLUE_MASK, ALPHA_MASK }, null);
+		
+		return new BufferedImage(model, raster, false, null);
+	}
+	
+	/**
+	 * Returns image itself if it is direct, else converts it once to an image
+	 * of TYPE_INT_ARGB holding the same color values.
+	 * 
+	 * @param image (BufferedImage) image to convert, may be null
+	 * @return (BufferedImage) direct image, null if image is null
+	 */
+	public static BufferedImage toDirect(BufferedImage image) {
+		
+		if (image == null || isDirect(image))
+			return image;
+		
+		return wrapWithAlpha(getPixels(image), image.getWidth(), image.getHeight());
+	}
+	
+}
@@ -0,0 +1,196 @@
+package de.studium.image_processing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ResultCache stores output files of filter runs on disk, so running the
+ * same filter on the same input again copies the stored output instead of
+ * decoding and filtering.
+ * 
+ * Outputs are stored under a key built from the digests of input and mask
+ * file, the fingerprint of the filter and the output format. Files are
+ * written atomically by moving a finished temporary file. Least recently
+ * used outputs are removed once the cache exceeds its size.
+ */
+public class ResultCache {
+
+	private static final String SUFFIX = ".out";
+	
+	private final Path directory;
+	private final long maxBytes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * Creates ResultCache in directory.
+	 * 
+	 * @param directory (Path) directory storing outputs, created if missing
+	 * @param maxBytes (long) maximum bytes of stored outputs
+	 * @throws IOException if directory can not be created
+	 */
+	public ResultCache(Path directory, long maxBytes) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Builds key of a filter run.
+	 * 
+	 * @param input (Path) image file
+	 * @param mask (Path) mask file, null if unmasked
+	 * @param filter (Filter) filter to apply
+	 * @param format (String) format of output file
+	 * @return (String) hex SHA-256 key of filter run
+	 * @throws IOException if files can not be read
+	 */
+	public String getKey(Path input, Path mask, Filter filter, String format) 
+			throws IOException {
+		
+		MessageDigest digest = newDigest();
+		digest.update(digest(input));
+		digest.update((mask != null) ? digest(mask) : new byte[0]);
+		digest.update(filter.getFingerprint().getBytes(StandardCharsets.UTF_8));
+		digest.update(format.getBytes(StandardCharsets.UTF_8));
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Copies stored output of key to output path, if there is one.
+	 * 
+	 * @param key (String) key of filter run
+	 * @param output (Path) path to copy output to
+	 * @return (boolean) true if output was stored
+	 * @throws IOException if output can not be copied
+	 */
+	public boolean restore(String key, Path output) throws IOException {
+		
+		Path stored = directory.resolve(key + SUFFIX);
+		
+		try {
+			Files.copy(stored, output, StandardCopyOption.REPLACE_EXISTING);
+			// last modified time marks last use
+			Files.setLastModifiedTime(stored, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (NoSuchFileException e) {
+			misses.incrementAndGet();
+			return false;
+		}
+		
+		hits.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Stores output file under key and removes least recently used outputs
+	 * if cache exceeds its size.
+	 * 
+	 * @param key (String) key of filter run
+	 * @param output (Path) output file to store
+	 * @throws IOException if output can not be stored
+	 */
+	public void store(String key, Path output) throws IOException {
+		
+		Path temporary = Files.createTempFile(directory, key, ".tmp");
+		
+		try {
+			Files.copy(output, temporary, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temporary, directory.resolve(key + SUFFIX), 
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+		
+		evict();
+	}
+	
+	/**
+	 * @return (String) hits, misses and hit rate of this run
+	 */
+	public String getReport() {
+		long hit = hits.get();
+		long total = hit + misses.get();
+		return String.format("Result cache: %d hits, %d misses, %.1f %% hit rate", 
+				hit, total - hit, (total > 0) ? 100.0 * hit / total : 0);
+	}
+	
+	/**
+	 * Removes least recently used outputs until cache fits into its size.
+	 */
+	private synchronized void evict() throws IOException {
+		
+		List<Path> stored = new ArrayList<>();
+		long bytes = 0;
+		
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : files) {
+				stored.add(file);
+				bytes += Files.size(file);
+			}
+		}
+		
+		if (bytes <= maxBytes)
+			return;
+		
+		stored.sort(Comparator.comparing(ResultCache::lastModified));
+		
+		for (Path file : stored) {
+			if (bytes <= maxBytes)
+				break;
+			long size = Files.size(file);
+			if (Files.deleteIfExists(file))
+				bytes -= size;
+		}
+	}
+	
+	private static FileTime lastModified(Path file) {
+		try {
+			return Files.getLastModifiedTime(file);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+	
+	/**
+	 * Calculates SHA-256 digest of file content.
+	 */
+	private static byte[] digest(Path file) throws IOException {
+		
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[1 << 16];
+		
+		try (InputStream in = Files.newInputStream(file)) {
+			for (int read = in.read(buffer); read > 0; read = in.read(buffer))
+				digest.update(buffer, 0, read);
+		}
+		return digest.digest();
+	}
+	
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes)
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+	
+}
@@ -0,0 +1,139 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A ScratchImage is an image stored in the file of a ScratchStore, one int
+ * color value per pixel, row after row. Rows are read and written at their
+ * position in the file, so different rows can be accessed concurrently.
+ * Rows are transferred in chunks of at most 64 MB, so even all rows of an
+ * image can be read at once, like filters needing the whole image do.
+ * 
+ * @see ScratchStore#allocate(int, int)
+ */
+public class ScratchImage {
+	
+	private static final int CHUNK_BYTES = 1 << 26;
+	
+	private final FileChannel channel;
+	private final long offset;
+	private final int width;
+	private final int height;
+	
+	/**
+	 * Created by ScratchStore only.
+	 */
+	ScratchImage(FileChannel channel, long offset, int width, int height) {
+		this.channel = channel;
+		this.offset = offset;
+		this.width = width;
+		this.height = height;
+	}
+	
+	/**
+	 * Reads rows into an image of TYPE_INT_ARGB.
+	 * 
+	 * @param fromRow (int) first row to read
+	 * @param toRow (int) row after the last one to read
+	 * @return (BufferedImage) image holding the rows
+	 * @throws IOException if rows can not be read
+	 * @throws IllegalArgumentException if rows do not fit into an int[]
+	 */
+	public BufferedImage readRows(int fromRow, int toRow) throws IOException {
+		
+		long length = (long) (toRow - fromRow) * width;
+		
+		if (length > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Rows " + fromRow + " to " + toRow 
+					+ " of width " + width + " do not fit into an array!");
+		
+		int[] pixels = new int[(int) length];
+		int chunkRows = getChunkRows();
+		ByteBuffer buffer = newBuffer(Math.min(chunkRows, toRow - fromRow));
+		
+		for (int row = fromRow; row < toRow; row += chunkRows) {
+			
+			int rows = Math.min(chunkRows, toRow - row);
+			long position = offset + 4L * row * width;
+			buffer.clear().limit(4 * rows * width);
+			
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					throw new IOException("Rows have not been written!");
+			}
+			buffer.flip();
+			buffer.asIntBuffer().get(pixels, (row - fromRow) * width, rows * width);
+		}
+		return RasterAccess.wrapWithAlpha(pixels, width, toRow - fromRow);
+	}
+	
+	/**
+	 * Writes rows of an array of color values.
+	 * 
+	 * @param targetRow (int) row of image to write first row to
+	 * @param pixels (int[]) color values, width values per row
+	 * @param fromRow (int) first row of pixels to write
+	 * @param toRow (int) row after the last one of pixels to write
+	 * @throws IOException if rows can not be written
+	 */
+	public void writeRows(int targetRow, int[] pixels, int fromRow, int toRow) 
+			throws IOException {
+		
+		if (targetRow + toRow - fromRow > height)
+			throw new IOException("Rows exceed image height!");
+		
+		int chunkRows = getChunkRows();
+		ByteBuffer buffer = newBuffer(Math.min(chunkRows, toRow - fromRow));
+		
+		for (int row = fromRow; row < toRow; row += chunkRows) {
+			
+			int rows = Math.min(chunkRows, toRow - row);
+			long position = offset + 4L * (targetRow + row - fromRow) * width;
+			buffer.clear().limit(4 * rows * width);
+			buffer.asIntBuffer().put(pixels, row * width, rows * width);
+			
+			while (buffer.hasRemaining())
+				channel.write(buffer, position + buffer.position());
+		}
+	}
+	
+	/**
+	 * @return (int) width of image
+	 */
+	public int getWidth() {
+		return width;
+	}
+	
+	/**
+	 * @return (int) height of image
+	 */
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * @return (int) rows transferred at once, at least one
+	 */
+	private int getChunkRows() {
+		return (int) Math.max(1, CHUNK_BYTES / (4L * width));
+	}
+	
+	/**
+	 * @throws IllegalArgumentException if rows do not fit into a buffer
+	 */
+	private ByteBuffer newBuffer(int rows) {
+		
+		long bytes = 4L * rows * width;
+		
+		if (bytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Row of width " + width 
+					+ " does not fit into a buffer!");
+		
+		return ByteBuffer.allocate((int) bytes).order(ByteOrder.nativeOrder());
+	}
+
+}
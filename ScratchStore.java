@@ -0,0 +1,78 @@
+package de.studium.image_processing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A ScratchStore keeps intermediate images outside of the Java heap in a
+ * temporary file. Images are read and written row by row at their position
+ * in the file, so only the rows in use are on the heap. While there is
+ * enough RAM, the operating system keeps the file in its page cache, else
+ * it is written to disk.
+ * 
+ * The file is deleted when the store is closed, which releases all of its
+ * images at once. The directory defaults to the system property 
+ * "image_processing.scratchDir" or the temporary directory.
+ */
+public class ScratchStore implements Closeable {
+	
+	private final FileChannel channel;
+	private long size;
+	
+	/**
+	 * Creates store in default directory.
+	 * 
+	 * @throws IOException if file can not be created
+	 */
+	public ScratchStore() throws IOException {
+		this(Paths.get(System.getProperty("image_processing.scratchDir", 
+				System.getProperty("java.io.tmpdir"))));
+	}
+	
+	/**
+	 * Creates store in given directory.
+	 * 
+	 * @param directory (Path) directory of temporary file
+	 * @throws IOException if file can not be created
+	 */
+	public ScratchStore(Path directory) throws IOException {
+		Path file = Files.createTempFile(directory, "scratch", ".raw");
+		channel = FileChannel.open(file, StandardOpenOption.READ, 
+				StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+	}
+	
+	/**
+	 * Reserves space for an image in the file. Its pixels are undefined
+	 * until written.
+	 * 
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @return (ScratchImage) image stored in file
+	 */
+	public synchronized ScratchImage allocate(int width, int height) {
+		ScratchImage image = new ScratchImage(channel, size, width, height);
+		size += 4L * width * height;
+		return image;
+	}
+	
+	/**
+	 * @return (long) bytes reserved for images
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+	
+	/**
+	 * Closes and deletes file.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
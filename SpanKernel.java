@@ -0,0 +1,31 @@
+package de.studium.image_processing;
+
+/**
+ * A SpanKernel calculates the colors of a whole range (span) of pixels of a
+ * PixelFilter at once. Kernels only use arithmetic on the packed colors, no
+ * calls or table lookups, so the JIT compiler can turn their loops into SIMD
+ * instructions processing several pixels per step.
+ * 
+ * If the JVM is started with "--add-modules jdk.incubator.vector", filters
+ * use kernels of VectorKernels written with the Vector API instead, unless
+ * "image_processing.vectorKernels" is false or PixelFilter.setVectorKernels
+ * (false) is called. The plain kernels stay the fallback.
+ * 
+ * Span kernels are used by default, the system property
+ * "image_processing.spanKernels" or PixelFilter.setSpanKernels(false) 
+ * switches back to calculating pixel by pixel.
+ */
+@FunctionalInterface
+public interface SpanKernel {
+
+	/**
+	 * Assigns calculated values to a range of the output array. Input and
+	 * output may be the same array.
+	 * 
+	 * @param imagePixel (int[]) color values of image
+	 * @param outputPixel (int[]) color values to fill
+	 * @param from (int) first index of range
+	 * @param to (int) index after the last one of range
+	 */
+	void apply(int[] imagePixel, int[] outputPixel, int from, int to);
+}
@@ -0,0 +1,256 @@
+package de.studium.image_processing;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * StripProcessor filters images too large for the heap. It reads horizontal
+ * strips of the image and mask by their source region, filters each strip
+ * and appends it to the output file, so memory only depends on strip height.
+ * 
+ * Strips of AreaFilters are read with an overlap of size rows above and
+ * below, which are needed to calculate the rows of the strip but are not
+ * written. Strips start at multiples of the size, so pixel blocks of a
+ * PixelGraphicFilter stay in place.
+ */
+public class StripProcessor {
+	
+	private static final int WHOLE_IMAGE = -1;
+	
+	private final int stripRows;
+	private final String format;
+	
+	/**
+	 * Task processing one strip.
+	 */
+	@FunctionalInterface
+	interface StripTask {
+		
+		/**
+		 * @param readFrom (int) first row to read
+		 * @param readTo (int) row after the last one to read
+		 * @param fromRow (int) first row of strip to write
+		 * @param toRow (int) row after the last one of strip to write
+		 * @throws IOException if rows can not be read or written
+		 */
+		void process(int readFrom, int readTo, int fromRow, int toRow) throws IOException;
+	}
+	
+	/**
+	 * Creates StripProcessor writing given number of rows per strip as BMP.
+	 * 
+	 * @param stripRows (int) rows per strip
+	 */
+	public StripProcessor(int stripRows) {
+		this(stripRows, "bmp");
+	}
+	
+	/**
+	 * Creates StripProcessor writing given number of rows per strip.
+	 * 
+	 * @param stripRows (int) rows per strip
+	 * @param format (String) output format, "bmp", "ppm" or "png"
+	 */
+	public StripProcessor(int stripRows, String format) {
+		this.stripRows = Math.max(1, stripRows);
+		this.format = format;
+	}
+	
+	/**
+	 * Filters image strip by strip and writes output file.
+	 * 
+	 * @param filter (Filter) filter to apply
+	 * @param input (File) image file
+	 * @param mask (File) mask file, null if unmasked
+	 * @param output (File) file to write in format of processor
+	 * @throws IOException if files can not be read or written
+	 */
+	public void process(Filter filter, File input, File mask, File output) 
+			throws IOException {
+		
+		ImageReader imageReader = openReader(input);
+		ImageReader maskReader = (mask != null) ? openReader(mask) : null;
+		
+		try {
+			
+			int width = imageReader.getWidth(0);
+			int height = imageReader.getHeight(0);
+			
+			try (StripWriter writer = StripWriter.open(format, output, width, height)) {
+				
+				forEachStrip(filter, height, stripRows, (readFrom, readTo, fromRow, toRow) -> {
+					
+					BufferedImage strip = readRows(imageReader, width, readFrom, readTo);
+					BufferedImage stripMask = (maskReader != null)
+							? readRows(maskReader, width, readFrom, readTo)
+							: null;
+					
+					BufferedImage filtered = filter.process(strip, stripMask);
+					
+					writer.writeRows(RasterAccess.getPixels(filtered), 
+							fromRow - readFrom, toRow - readFrom);
+					
+					// strips are not used again
+					DerivedDataCache.getInstance().invalidate(strip);
+					DerivedDataCache.getInstance().invalidate(stripMask);
+					DerivedDataCache.getInstance().invalidate(filtered);
+				});
+			}
+			
+		} finally {
+			close(imageReader);
+			close(maskReader);
+		}
+	}
+	
+	/**
+	 * Splits rows of an image into strips for a filter and calls task for
+	 * each of them in order. Strips are read with the overlap the filter 
+	 * needs, aligned to its blocks, or as a whole if it needs the whole image.
+	 * 
+	 * @param filter (Filter) filter to apply to strips
+	 * @param height (int) height of image
+	 * @param stripRows (int) rows per strip
+	 * @param task (StripTask) task to perform on each strip
+	 * @throws IOException if task fails
+	 */
+	static void forEachStrip(Filter filter, int height, int stripRows, StripTask task) 
+			throws IOException {
+		
+		int overlap = getOverlap(filter);
+		int alignment = getAlignment(filter);
+		int rows = stripRows;
+		
+		if (overlap == WHOLE_IMAGE) {
+			// filter needs all pixels at once
+			overlap = 0;
+			rows = height;
+		}
+		
+		// keep strips and overlap aligned to blocks
+		rows = (rows + alignment - 1) / alignment * alignment;
+		overlap = (overlap + alignment - 1) / alignment * alignment;
+		
+		for (int fromRow = 0; fromRow < height; fromRow += rows) {
+			
+			int toRow = Math.min(height, fromRow + rows);
+			
+			task.process(Math.max(0, fromRow - overlap), Math.min(height, toRow + overlap), 
+					fromRow, toRow);
+		}
+	}
+	
+	/**
+	 * Returns number of rows above and below a strip a filter needs to 
+	 * calculate the rows of the strip.
+	 * 
+	 * @param filter (Filter) filter to check
+	 * @return (int) number of rows, -1 if filter needs the whole image
+	 */
+	static int getOverlap(Filter filter) {
+		
+		if (filter instanceof PixelFilter)
+			return 0;
+		
+		if (filter instanceof AreaFilter)
+			return ((AreaFilter) filter).size;
+		
+		if (filter instanceof ChainFilter) {
+			int overlap = 0;
+			for (Filter stage : ((ChainFilter) filter).toApply) {
+				int stageOverlap = getOverlap(stage);
+				if (stageOverlap == WHOLE_IMAGE)
+					return WHOLE_IMAGE;
+				overlap += stageOverlap;
+			}
+			return overlap;
+		}
+		
+		return WHOLE_IMAGE;
+	}
+	
+	/**
+	 * Returns number of rows strips need to be aligned to.
+	 * 
+	 * @param filter (Filter) filter to check
+	 * @return (int) rows strips have to start at multiples of
+	 */
+	static int getAlignment(Filter filter) {
+		
+		if (filter instanceof AreaFilter)
+			return ((AreaFilter) filter).size;
+		
+		if (filter instanceof ChainFilter) {
+			int alignment = 1;
+			for (Filter stage : ((ChainFilter) filter).toApply)
+				alignment = leastCommonMultiple(alignment, getAlignment(stage));
+			return alignment;
+		}
+		
+		return 1;
+	}
+	
+	/**
+	 * Reads rows of first image of reader.
+	 */
+	private BufferedImage readRows(ImageReader reader, int width, int fromRow, 
+			int toRow) throws IOException {
+		
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(new Rectangle(0, fromRow, width, toRow - fromRow));
+		return reader.read(0, param);
+	}
+	
+	/**
+	 * Opens reader for image file.
+	 */
+	private ImageReader openReader(File file) throws IOException {
+		
+		ImageInputStream stream = ImageIO.createImageInputStream(file);
+		
+		if (stream == null)
+			throw new IOException("Can not read " + file + "!");
+		
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+		
+		if (!readers.hasNext()) {
+			stream.close();
+			throw new IOException("No reader for " + file + "!");
+		}
+		
+		ImageReader reader = readers.next();
+		reader.setInput(stream, false, true);
+		return reader;
+	}
+	
+	/**
+	 * Closes input stream of reader and disposes it.
+	 */
+	private void close(ImageReader reader) throws IOException {
+		
+		if (reader == null)
+			return;
+		
+		((ImageInputStream) reader.getInput()).close();
+		reader.dispose();
+	}
+	
+	private static int leastCommonMultiple(int a, int b) {
+		int x = a, y = b;
+		while (y != 0) {
+			int rest = x % y;
+			x = y;
+			y = rest;
+		}
+		return a / x * b;
+	}
+
+}
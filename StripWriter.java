@@ -0,0 +1,236 @@
+package de.studium.image_processing;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A StripWriter writes an image file strip by strip, so the complete image
+ * never has to be held in memory. Rows are encoded into a direct buffer,
+ * which is reused and written to the channel of the file or stream 
+ * whenever it is full.
+ *
+ * Supported formats are "bmp", "ppm" and "png".
+ */
+public abstract class StripWriter implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	protected final int width;
+	protected final int height;
+	private int rowsWritten;
+
+	/**
+	 * Creates StripWriter writing to a channel, which is closed with it.
+	 *
+	 * @param channel (WritableByteChannel) channel to write to
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @param order (ByteOrder) byte order of numbers put into buffer
+	 */
+	protected StripWriter(WritableByteChannel channel, int width, int height, 
+			ByteOrder order) {
+		this.width = width;
+		this.height = height;
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(order);
+	}
+
+	/**
+	 * Creates or truncates file.
+	 *
+	 * @param file (File) file to write to
+	 * @return (WritableByteChannel) channel of file
+	 * @throws IOException if file can not be written
+	 */
+	protected static WritableByteChannel create(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * @param format (String) format to check
+	 * @return (boolean) true if format is "bmp", "ppm" or "png"
+	 */
+	public static boolean isSupported(String format) {
+		return format.equals("bmp") || format.equals("ppm") || format.equals("png");
+	}
+
+	/**
+	 * Creates writer for a format.
+	 *
+	 * @param format (String) "bmp", "ppm" or "png"
+	 * @param file (File) file to write to
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @return (StripWriter) writer of format
+	 * @throws IOException if file can not be written
+	 */
+	public static StripWriter open(String format, File file, int width, int height)
+			throws IOException {
+
+		if (!isSupported(format))
+			throw new IllegalArgumentException("Unknown format " + format + "!");
+
+		return open(format, create(file), width, height);
+	}
+
+	/**
+	 * Creates writer for a format writing to a channel, like the output
+	 * stream of a response.
+	 *
+	 * @param format (String) "bmp", "ppm" or "png"
+	 * @param channel (WritableByteChannel) channel to write to, closed with writer
+	 * @param width (int) width of image
+	 * @param height (int) height of image
+	 * @return (StripWriter) writer of format
+	 * @throws IOException if header can not be written
+	 */
+	public static StripWriter open(String format, WritableByteChannel channel, 
+			int width, int height) throws IOException {
+
+		switch (format) {
+			case "bmp":
+				return new BmpStripWriter(channel, width, height);
+			case "ppm":
+				return new PpmStripWriter(channel, width, height);
+			case "png":
+				return new PngStripWriter(channel, width, height);
+			default:
+				throw new IllegalArgumentException("Unknown format " + format + "!");
+		}
+	}
+
+	/**
+	 * Writes complete image into a file.
+	 *
+	 * @param image (BufferedImage) image to write
+	 * @param format (String) "bmp", "ppm" or "png"
+	 * @param file (File) file to write to
+	 * @throws IOException if file can not be written
+	 */
+	public static void write(BufferedImage image, String format, File file)
+			throws IOException {
+		try (StripWriter writer = open(format, file, image.getWidth(), image.getHeight())) {
+			writer.writeImage(RasterAccess.getPixels(image));
+		}
+	}
+
+	/**
+	 * Writes complete image into a channel and closes it.
+	 *
+	 * @param image (BufferedImage) image to write
+	 * @param format (String) "bmp", "ppm" or "png"
+	 * @param channel (WritableByteChannel) channel to write to
+	 * @throws IOException if channel can not be written
+	 */
+	public static void write(BufferedImage image, String format, 
+			WritableByteChannel channel) throws IOException {
+		try (StripWriter writer = open(format, channel, image.getWidth(), image.getHeight())) {
+			writer.writeImage(RasterAccess.getPixels(image));
+		}
+	}
+
+	/**
+	 * Writes rows of a strip.
+	 *
+	 * @param pixels (int[]) color values of strip, width values per row
+	 * @param fromRow (int) first row of strip to write
+	 * @param toRow (int) row after the last one to write
+	 * @throws IOException if rows can not be written or exceed image height
+	 */
+	public void writeRows(int[] pixels, int fromRow, int toRow) throws IOException {
+
+		if (rowsWritten + toRow - fromRow > height)
+			throw new IOException("More rows written than image height!");
+
+		encodeRows(pixels, fromRow, toRow);
+		rowsWritten += toRow - fromRow;
+	}
+
+	/**
+	 * Writes all rows of an image.
+	 *
+	 * @param pixels (int[]) color values of image
+	 * @throws IOException if rows can not be written
+	 */
+	public void writeImage(int[] pixels) throws IOException {
+		writeRows(pixels, 0, height);
+	}
+
+	/**
+	 * Finishes and closes file.
+	 *
+	 * @throws IOException if not all rows have been written
+	 */
+	@Override
+	public void close() throws IOException {
+
+		try {
+			if (rowsWritten == height)
+				finish();
+			flush();
+		} finally {
+			channel.close();
+		}
+
+		if (rowsWritten != height)
+			throw new IOException("Only " + rowsWritten + " of " + height
+					+ " rows written!");
+	}
+
+	/**
+	 * Encodes rows of a strip.
+	 */
+	protected abstract void encodeRows(int[] pixels, int fromRow, int toRow)
+			throws IOException;
+
+	/**
+	 * Writes whatever follows the last row, nothing by default.
+	 */
+	protected void finish() throws IOException {
+	}
+
+	/**
+	 * Makes room for bytes in the buffer, writing its content if needed.
+	 *
+	 * @param bytes (int) bytes to put next, at most the size of the buffer
+	 * @return (ByteBuffer) buffer with at least bytes remaining
+	 */
+	protected ByteBuffer reserve(int bytes) throws IOException {
+		if (buffer.remaining() < bytes)
+			flush();
+		return buffer;
+	}
+
+	/**
+	 * Puts bytes into buffer, writing it whenever it is full.
+	 */
+	protected void put(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			int count = Math.min(length, reserve(1).remaining());
+			buffer.put(bytes, offset, count);
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Writes content of buffer to file.
+	 */
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+}
@@ -24,22 +24,87 @@ public class ThresholdFilter extends PixelFilter {
 					: MIN_VALUE;
 	}
 
+	@Override
+	public String getFingerprint() {
+		return super.getFingerprint() + "(" + threshold + ")";
+	}
+	
 	/**
 	 * Returns black color value, if pixel greyscale value is below threshold,
 	 * white color value else.
 	 */
 	@Override
 	public int calculate(int pixelColor) {
-		int averageValue = ColorContainer.fromValue(pixelColor).getAverage();	
+		return calculateFromAverage(PixelColor.average(pixelColor));
+	}
+	
+	/**
+	 * Black or white only depends on channel sum.
+	 */
+	@Override
+	protected LookupTable compile() {
+		return LookupTable.fromChannelSum(sum -> calculateFromAverage(sum / 3));
+	}
+	
+	/**
+	 * Sets all planes to 0 or 255 depending on the sum of planes.
+	 */
+	@Override
+	protected void calculatePlanes(PlanarImage image, PlanarImage output, 
+			int from, int to) {
+		
+		int limit = 3 * threshold;
+		byte[] red = image.getRed(), green = image.getGreen(), blue = image.getBlue();
+		byte[] outRed = output.getRed(), outGreen = output.getGreen(), 
+				outBlue = output.getBlue();
+		
+		for (int i = from; i < to; i++) {
+			int sum = (red[i] & 0xff) + (green[i] & 0xff) + (blue[i] & 0xff);
+			byte value = (byte) ((sum < limit) ? MIN_VALUE : MAX_VALUE);
+			outRed[i] = value;
+			outGreen[i] = value;
+			outBlue[i] = value;
+		}
+	}
+	
+	/**
+	 * Average is below threshold if channel sum is below 3 * threshold. The
+	 * sign of their difference selects black or white without branching.
+	 */
+	@Override
+	protected SpanKernel compileSpan() {
+		
+		int limit = 3 * threshold;
+		
+		return (imagePixel, outputPixel, from, to) -> {
+			for (int i = from; i < to; i++) {
+				int pixel = imagePixel[i];
+				int sum = ((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff);
+				// all bits set if below threshold
+				int below = (sum - limit) >> 31;
+				outputPixel[i] = 0xff000000 | (~below & 0xffffff);
+			}
+		};
+	}
 	
+	@Override
+	SpanKernel compileVector(VectorKernels kernels) {
+		return kernels.threshold(3 * threshold);
+	}
+	
+	/**
+	 * Returns black color value, if greyscale value is below threshold,
+	 * white color value else.
+	 * 
+	 * @param averageValue (int) 0-255 greyscale value of pixel
+	 * @return (int) representation of black or white
+	 */
+	private int calculateFromAverage(int averageValue) {
+		
 		if (averageValue < threshold)
-			return ColorContainer
-					.fromRGB(MIN_VALUE, MIN_VALUE, MIN_VALUE)
-					.getColorValue();
+			return PixelColor.grey(MIN_VALUE);
 		
-		return ColorContainer
-				.fromRGB(MAX_VALUE, MAX_VALUE, MAX_VALUE)
-				.getColorValue();
+		return PixelColor.grey(MAX_VALUE);
 	}
 
 }
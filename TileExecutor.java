@@ -0,0 +1,296 @@
+package de.studium.image_processing;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The TileExecutor splits an image into bands of rows (tiles) and processes
+ * them in parallel on a ForkJoinPool. Every tile spans the full image width.
+ *
+ * Tiles of an AreaFilter read their surroundings from the complete input
+ * array, so the size / 2 rows above and below a tile (halo) are always
+ * available and results are identical to processing the image at once.
+ *
+ * Number of threads and rows per tile default to the system properties
+ * "image_processing.threads" and "image_processing.tileRows". Calls that
+ * name their kind of work and image width get threads and tile rows from
+ * the AdaptiveScheduler instead, which may use fewer threads or none, 
+ * until threads or tile rows are set.
+ *
+ * Pools are published as one immutable object, so a call always sees
+ * threads and pools that belong together. Replaced pools are not shut
+ * down, calls running on them finish and their idle workers exit.
+ *
+ * Bytes allocated by tiles on the workers are charged to the FilterMetrics
+ * recording running on the thread that dispatched them.
+ */
+public class TileExecutor {
+
+	private static final int DEFAULT_TILE_ROWS = 64;
+
+	private static TileExecutor instance = new TileExecutor();
+
+	private volatile Pools pools;
+	private volatile int tileRows;
+	private volatile boolean adaptive = true;
+
+	/**
+	 * Task processing all rows of a tile.
+	 */
+	@FunctionalInterface
+	public interface RowTask {
+
+		/**
+		 * @param fromRow (int) first row of tile
+		 * @param toRow (int) row after the last one of tile
+		 */
+		void process(int fromRow, int toRow);
+	}
+
+	/**
+	 * Pool with a number of threads and the pools with fewer threads created
+	 * for it on demand.
+	 */
+	private static final class Pools {
+
+		final int threads;
+		final ForkJoinPool pool;
+		final Map<Integer, ForkJoinPool> smallerPools = new ConcurrentHashMap<>();
+
+		Pools(int threads) {
+			this.threads = Math.max(1, threads);
+			this.pool = (this.threads > 1)
+					? new ForkJoinPool(this.threads)
+					: null;
+		}
+	}
+
+	/**
+	 * Only one instance exists. Reads thread count and tile size from system
+	 * properties, defaults to number of cores and 64 rows.
+	 */
+	private TileExecutor() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		pools = new Pools(Integer.getInteger("image_processing.threads", cores));
+		this.tileRows = Math.max(1, 
+				Integer.getInteger("image_processing.tileRows", DEFAULT_TILE_ROWS));
+	}
+
+	/**
+	 * Returns only instance of TileExecutor
+	 *
+	 * @return (TileExecutor) Instance of TileExecutor
+	 */
+	public static TileExecutor getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Sets number of threads used to process tiles. A value of 1 processes
+	 * all tiles serially on the calling thread. Plans of the 
+	 * AdaptiveScheduler are not used anymore.
+	 *
+	 * @param threads (int) number of threads, at least 1
+	 */
+	public void setThreads(int threads) {
+		adaptive = false;
+		pools = new Pools(threads);
+	}
+
+	/**
+	 * @return (int) number of threads used to process tiles
+	 */
+	public int getThreads() {
+		return pools.threads;
+	}
+
+	/**
+	 * Sets number of rows per tile. Plans of the AdaptiveScheduler are not
+	 * used anymore.
+	 *
+	 * @param tileRows (int) rows per tile, at least 1
+	 */
+	public void setTileRows(int tileRows) {
+		adaptive = false;
+		this.tileRows = Math.max(1, tileRows);
+	}
+
+	/**
+	 * @return (int) number of rows per tile
+	 */
+	public int getTileRows() {
+		return tileRows;
+	}
+
+	/**
+	 * @return (boolean) true if calls naming their kind of work are planned
+	 * 		by the AdaptiveScheduler, false once threads or tile rows are set
+	 */
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * Splits rows of an image into tiles and calls task for each of them.
+	 * Returns after all tiles have been processed.
+	 *
+	 * @param height (int) number of rows to split
+	 * @param task (RowTask) task to perform on each tile
+	 */
+	public void forEachTile(int height, RowTask task) {
+		forEachTile(height, tileRows, task);
+	}
+
+	/**
+	 * Splits rows of an image into tiles as planned by the AdaptiveScheduler
+	 * for kind of work and image size and calls task for each of them, area
+	 * work planned like reading a 3x3 neighbourhood. Returns after all tiles
+	 * have been processed.
+	 *
+	 * @param workload (Workload) kind of work done by task
+	 * @param width (int) pixels per row
+	 * @param height (int) number of rows to split
+	 * @param task (RowTask) task to perform on each tile
+	 */
+	public void forEachTile(Workload workload, int width, int height,
+			RowTask task) {
+		forEachTile(workload, AdaptiveScheduler.getDefaultReads(workload), width, 
+				height, task);
+	}
+
+	/**
+	 * Splits rows of an image into tiles as planned by the AdaptiveScheduler
+	 * for kind of work, input pixels read per output pixel and image size 
+	 * and calls task for each of them. Returns after all tiles have been 
+	 * processed.
+	 *
+	 * @param workload (Workload) kind of work done by task
+	 * @param reads (int) input pixels task reads per output pixel
+	 * @param width (int) pixels per row
+	 * @param height (int) number of rows to split
+	 * @param task (RowTask) task to perform on each tile
+	 */
+	public void forEachTile(Workload workload, int reads, int width, int height,
+			RowTask task) {
+
+		if (!adaptive) {
+			forEachTile(height, tileRows, pools.threads, task);
+			return;
+		}
+
+		AdaptiveScheduler.Plan plan = 
+				AdaptiveScheduler.getInstance().getPlan(workload, reads, width, height);
+
+		forEachTile(height, plan.getTileRows(), plan.getThreads(), task);
+	}
+
+	/**
+	 * Splits rows into tiles of given size and calls task for each of them.
+	 * Tiles start at multiples of tileRows. Returns after all tiles have been
+	 * processed.
+	 *
+	 * @param height (int) number of rows to split
+	 * @param tileRows (int) rows per tile, at least 1
+	 * @param task (RowTask) task to perform on each tile
+	 */
+	public void forEachTile(int height, int tileRows, RowTask task) {
+		forEachTile(height, tileRows, pools.threads, task);
+	}
+
+	/**
+	 * Splits rows into tiles of given size and processes them on at most 
+	 * given number of threads. Returns after all tiles have been processed.
+	 *
+	 * @param height (int) number of rows to split
+	 * @param tileRows (int) rows per tile, at least 1
+	 * @param threads (int) threads to use, 1 to process all rows at once on
+	 * 		the calling thread
+	 * @param task (RowTask) task to perform on each tile
+	 */
+	public void forEachTile(int height, int tileRows, int threads, RowTask task) {
+
+		ForkJoinPool current = getPool(threads);
+
+		if (current == null || height <= tileRows) {
+			task.process(0, height);
+			return;
+		}
+
+		current.invoke(new TileAction(charged(task), 0, height, tileRows));
+	}
+
+	/**
+	 * @return (RowTask) task charging allocations of tiles to the recording
+	 * 		running on calling thread, task itself if there is none
+	 */
+	private static RowTask charged(RowTask task) {
+
+		FilterMetrics.Recording recording = FilterMetrics.Recording.current();
+
+		if (recording == null)
+			return task;
+
+		return (fromRow, toRow) -> {
+			// thread already counted by recording, like the calling thread
+			if (FilterMetrics.Recording.current() == recording)
+				task.process(fromRow, toRow);
+			else
+				recording.charge(() -> task.process(fromRow, toRow));
+		};
+	}
+
+	/**
+	 * @return (ForkJoinPool) pool with at most given number of threads, null
+	 * 		if tiles are processed serially
+	 */
+	private ForkJoinPool getPool(int threads) {
+
+		Pools current = pools;
+
+		if (threads >= current.threads)
+			return current.pool;
+		if (threads <= 1)
+			return null;
+
+		return current.smallerPools.computeIfAbsent(threads, ForkJoinPool::new);
+	}
+
+	/**
+	 * Recursively halves row range until it fits into one tile.
+	 */
+	private static class TileAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final RowTask task;
+		private final int fromRow;
+		private final int toRow;
+		private final int tileRows;
+
+		TileAction(RowTask task, int fromRow, int toRow, int tileRows) {
+			this.task = task;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+			this.tileRows = tileRows;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (toRow - fromRow <= tileRows) {
+				task.process(fromRow, toRow);
+				return;
+			}
+
+			// split at tile border
+			int tiles = (toRow - fromRow + tileRows - 1) / tileRows;
+			int middle = fromRow + tiles / 2 * tileRows;
+
+			invokeAll(new TileAction(task, fromRow, middle, tileRows),
+					new TileAction(task, middle, toRow, tileRows));
+		}
+	}
+
+}
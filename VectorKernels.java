@@ -0,0 +1,56 @@
+package de.studium.image_processing;
+
+/**
+ * VectorKernels creates SpanKernels of the simple PixelFilters that use the
+ * Vector API (jdk.incubator.vector), processing a full vector of pixels per
+ * step. They are implemented by VectorSpanKernels, which is only loaded if
+ * the JVM was started with "--add-modules jdk.incubator.vector". Without
+ * the module, filters use their plain SpanKernels instead.
+ */
+interface VectorKernels {
+
+	/**
+	 * @return (SpanKernel) kernel setting all colorbands to their average
+	 */
+	SpanKernel monochrome();
+
+	/**
+	 * @param bits (int) bits of the colorband to keep
+	 * @return (SpanKernel) kernel keeping one colorband
+	 */
+	SpanKernel colorBand(int bits);
+
+	/**
+	 * @param limit (int) channel sum from which pixels get white
+	 * @return (SpanKernel) kernel setting pixels to black or white
+	 */
+	SpanKernel threshold(int limit);
+
+	/**
+	 * @param match (int) color to replace
+	 * @param replacement (int) color to replace it with
+	 * @return (SpanKernel) kernel replacing one color
+	 */
+	SpanKernel replace(int match, int replacement);
+
+	/**
+	 * Loads VectorSpanKernels if the Vector API is available.
+	 *
+	 * @return (VectorKernels) kernels using the Vector API, null if absent
+	 */
+	static VectorKernels load() {
+
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+			return null;
+
+		try {
+			return (VectorKernels) Class.forName(
+					"de.studium.image_processing.VectorSpanKernels")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// compiled without the Vector API
+			return null;
+		}
+	}
+
+}
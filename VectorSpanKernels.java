@@ -0,0 +1,151 @@
+package de.studium.image_processing;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorSpanKernels implements the SpanKernels of VectorKernels with the
+ * Vector API. Each kernel processes full vectors of the preferred species
+ * over a span and the remaining pixels at its end with a lane mask, so no
+ * pixel outside of the span is read or written. Results are identical to
+ * the plain SpanKernels of the filters.
+ *
+ * Needs "--add-modules jdk.incubator.vector" to compile and run. It is only
+ * loaded reflectively by VectorKernels.load, so the other classes compile
+ * and run without the module.
+ */
+final class VectorSpanKernels implements VectorKernels {
+
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+	private static final int ALPHA = 0xff000000;
+
+	// masks of the first n lanes, for the end of a span
+	private static final VectorMask<Integer>[] TAILS = tails();
+
+	@Override
+	public SpanKernel monochrome() {
+		return (imagePixel, outputPixel, from, to) -> {
+
+			int i = from;
+			for (int bound = from + SPECIES.loopBound(to - from); i < bound; 
+					i += SPECIES.length())
+				monochrome(IntVector.fromArray(SPECIES, imagePixel, i))
+						.intoArray(outputPixel, i);
+
+			if (i < to) {
+				VectorMask<Integer> lanes = TAILS[to - i];
+				store(monochrome(IntVector.fromArray(SPECIES, imagePixel, i, lanes)),
+						outputPixel, i, to);
+			}
+		};
+	}
+
+	@Override
+	public SpanKernel colorBand(int bits) {
+		return (imagePixel, outputPixel, from, to) -> {
+
+			int i = from;
+			for (int bound = from + SPECIES.loopBound(to - from); i < bound; 
+					i += SPECIES.length())
+				IntVector.fromArray(SPECIES, imagePixel, i).and(bits).or(ALPHA)
+						.intoArray(outputPixel, i);
+
+			if (i < to) {
+				VectorMask<Integer> lanes = TAILS[to - i];
+				store(IntVector.fromArray(SPECIES, imagePixel, i, lanes).and(bits).or(ALPHA),
+						outputPixel, i, to);
+			}
+		};
+	}
+
+	@Override
+	public SpanKernel threshold(int limit) {
+		return (imagePixel, outputPixel, from, to) -> {
+
+			int i = from;
+			for (int bound = from + SPECIES.loopBound(to - from); i < bound; 
+					i += SPECIES.length())
+				threshold(IntVector.fromArray(SPECIES, imagePixel, i), limit)
+						.intoArray(outputPixel, i);
+
+			if (i < to) {
+				VectorMask<Integer> lanes = TAILS[to - i];
+				store(threshold(IntVector.fromArray(SPECIES, imagePixel, i, lanes), limit),
+						outputPixel, i, to);
+			}
+		};
+	}
+
+	@Override
+	public SpanKernel replace(int match, int replacement) {
+		return (imagePixel, outputPixel, from, to) -> {
+
+			int i = from;
+			for (int bound = from + SPECIES.loopBound(to - from); i < bound; 
+					i += SPECIES.length()) {
+				IntVector pixel = IntVector.fromArray(SPECIES, imagePixel, i);
+				pixel.blend(replacement, pixel.compare(VectorOperators.EQ, match))
+						.intoArray(outputPixel, i);
+			}
+
+			if (i < to) {
+				VectorMask<Integer> lanes = TAILS[to - i];
+				IntVector pixel = IntVector.fromArray(SPECIES, imagePixel, i, lanes);
+				store(pixel.blend(replacement, pixel.compare(VectorOperators.EQ, match)),
+						outputPixel, i, to);
+			}
+		};
+	}
+
+	/**
+	 * @return (VectorMask[]) masks of the first n lanes for each n below the
+	 * 		number of lanes
+	 */
+	@SuppressWarnings("unchecked")
+	private static VectorMask<Integer>[] tails() {
+		VectorMask<Integer>[] tails = new VectorMask[SPECIES.length()];
+		for (int n = 0; n < tails.length; n++)
+			tails[n] = SPECIES.indexInRange(0, n);
+		return tails;
+	}
+
+	/**
+	 * Stores the lanes of a vector that belong to the span. Lanes are 
+	 * extracted one by one, as masked stores are not compiled to vector 
+	 * instructions on all JDKs.
+	 */
+	private static void store(IntVector vector, int[] outputPixel, int from, int to) {
+		for (int lane = 0; lane < to - from; lane++)
+			outputPixel[from + lane] = vector.lane(lane);
+	}
+
+	/**
+	 * Divides channel sum by 3 like the plain kernel, exact for sums up to
+	 * 765, and copies result into all colorbands.
+	 */
+	private static IntVector monochrome(IntVector pixel) {
+		return channelSum(pixel).mul(0xaaab).lanewise(VectorOperators.LSHR, 17)
+				.mul(0x010101).or(ALPHA);
+	}
+
+	/**
+	 * @return (IntVector) black where channel sum is below limit, else white
+	 */
+	private static IntVector threshold(IntVector pixel, int limit) {
+		// all bits set if below threshold
+		IntVector below = channelSum(pixel).sub(limit).lanewise(VectorOperators.ASHR, 31);
+		return below.not().and(0xffffff).or(ALPHA);
+	}
+
+	/**
+	 * @return (IntVector) sum of red, green and blue value of each pixel
+	 */
+	private static IntVector channelSum(IntVector pixel) {
+		return pixel.lanewise(VectorOperators.LSHR, 16).and(0xff)
+				.add(pixel.lanewise(VectorOperators.LSHR, 8).and(0xff))
+				.add(pixel.and(0xff));
+	}
+
+}
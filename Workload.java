@@ -0,0 +1,16 @@
+package de.studium.image_processing;
+
+/**
+ * The values of this enum represent kinds of work split into tiles, by
+ * how much of the input each output pixel reads. The AdaptiveScheduler
+ * plans tiles for each kind separately.
+ */
+public enum Workload {
+
+	/** each output pixel reads its own input pixel */
+	PIXEL,
+
+	/** each output pixel reads a neighbourhood of input pixels */
+	AREA;
+
+}